@@ -1,10 +1,17 @@
 package com.codegear.dn.search.engine;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.GregorianCalendar;
 import java.util.HashMap;
 import java.util.Set;
+import java.util.TimeZone;
 
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.util.NumericUtils;
 
 public class ContentFields {
 	/** Predefined Lucene field names */
@@ -26,10 +33,23 @@ public class ContentFields {
 	public static final String WORKAROUND_FIELD = "workaround";
 	public static final String ALLSOURCE_FIELD = "source";
 	
+	/** The publication date in seconds since 1970 UTC, indexed in the multi-precision numeric
+	 * encoding, so that date ranges are matched with a few term seeks. */
+	public static final String PUBDATETIME_FIELD = "pubdatetime";
+	
+	/** The precision step of the numeric encoding of the publication date. */
+	public static final int PUBDATETIME_PRECISION_STEP = NumericUtils.PRECISION_STEP_DEFAULT;
+	
+	/** The format of the publication date, yyyymmdd[hhmmss]. */
+	private static final String DATE_PATTERN = "[0-9]{4}[0-9]{2}[0-9]{2}([0-9]{2}[0-9]{2}[0-9]{2})?";
+	
 	/** Contains the field names that should be searched without an explicit field specifier.
 	 *  These fields should also have their term vector stored. */
 	public static final String[] queryFields = new String[] { TITLE_FIELD, SUMMARY_FIELD, BODY_FIELD };
 	
+	/** Contains the un-tokenized field names whose values can be counted by a search. */
+	public static final String[] facetFields = new String[] { PRODUCT_FIELD, VERSION_FIELD, CATEGORY_FIELD, LANG_FIELD };
+	
 	private String appID = "";
 	private String contentID = "";
 	private String author = "";
@@ -49,6 +69,15 @@ public class ContentFields {
 	private String allSource = "";
 	private SourceCodeSnippet[] snippets = null;
 	
+	/** Indicates whether the body and comments still have to be converted from HTML. The
+	 * conversion is deferred to asDocument(), so that it runs on the indexer's worker
+	 * threads rather than on the thread that submitted the content. */
+	private boolean isHTML = false;
+	
+	/** Creates an empty instance, used when reading the fields back from the journal. */
+	private ContentFields() {
+	}
+	
 	public ContentFields( String appID, String contentID, String author, String title,
 			String summary, String body, String publicationDate, String languageCode )
 			throws EngineException {
@@ -135,8 +164,7 @@ public class ContentFields {
 		validateID();
 		validateDate();
 		
-		if( isHTML )
-			convertHTMLToText();
+		this.isHTML = isHTML;
 	}
 	
 	public ContentFields( String appID, String contentID, String author, String title,
@@ -199,8 +227,13 @@ public class ContentFields {
 		validateDate();
 		validateSnippets();
 		
-		if( isHTML )
-			convertHTMLToText();
+		this.isHTML = isHTML;
+	}
+	
+	/** Retrieve the body text. After asDocument() has been called, HTML content has been
+	 * converted to text. */
+	public String getBody() {
+		return this.body;
 	}
 	
 	/** Retrieve the unique Lucene ID */
@@ -214,9 +247,19 @@ public class ContentFields {
 		return appID + "." + contentID;
 	}
 	
+	/** Indicates that the body and comments contain HTML, which is converted to plain text
+	 * when the document is created. */
+	public void setIsHTML( boolean isHTML ) {
+		this.isHTML = isHTML;
+	}
+	
 	/** Convert the data in the fields into a Lucene Document instance. */
 	public Document asDocument() {
 	    Document doc = new Document();
+	    
+	    // Perform the deferred HTML conversion.
+	    if( this.isHTML )
+	    	convertHTMLToText();
 
 	    // Unique Lucene ID is the appID merged with the contentID.
 	    doc.add( new Field( ID_FIELD, getLuceneID(), Field.Store.YES, Field.Index.UN_TOKENIZED ) );
@@ -239,6 +282,12 @@ public class ContentFields {
 	    addField( doc, TAGS_FIELD, this.tags, Field.Store.NO, Field.Index.TOKENIZED );
 	    addField( doc, CATEGORY_FIELD, this.category, Field.Store.NO, Field.Index.UN_TOKENIZED );
 	    addField( doc, WORKAROUND_FIELD, this.workaround, Field.Store.NO, Field.Index.TOKENIZED );
+	    
+	    // The publication date is also indexed as a number, for date range filters and
+	    // recency boosts.
+	    Long publicationSeconds = toSeconds( this.publicationDate );
+	    if( publicationSeconds != null )
+	    	doc.add( new NumericField( PUBDATETIME_FIELD, PUBDATETIME_PRECISION_STEP, Field.Store.NO, true ).setLongValue( publicationSeconds ) );
 	    addField( doc, ALLSOURCE_FIELD, this.allSource, Field.Store.NO, Field.Index.TOKENIZED );
 	    
 	    // Source code snippets.
@@ -281,16 +330,193 @@ public class ContentFields {
 	    return doc;
 	}
 	
+	/** Writes the fields to out, so that they can be read back with readFrom(). */
+	public void writeTo( DataOutput out ) throws IOException {
+		writeString( out, appID );
+		writeString( out, contentID );
+		writeString( out, author );
+		writeString( out, title );
+		writeString( out, summary );
+		writeString( out, body );
+		writeString( out, publicationDate );
+		writeString( out, languageCode );
+		writeString( out, comments );
+		writeString( out, product );
+		writeString( out, version );
+		writeString( out, tags );
+		writeString( out, category );
+		writeString( out, extraData );
+		writeString( out, contentType );
+		writeString( out, workaround );
+		writeString( out, allSource );
+		out.writeBoolean( isHTML );
+		
+		if( snippets == null )
+		{
+			out.writeInt( -1 );
+		}
+		else
+		{
+			out.writeInt( snippets.length );
+			
+			for( SourceCodeSnippet snippet : snippets )
+			{
+				writeString( out, snippet.getLanguage() );
+				writeString( out, snippet.getComments() );
+				writeString( out, snippet.getSource() );
+				writeString( out, snippet.getSourceWithoutComments() );
+				writeString( out, snippet.getSourceWithoutStrings() );
+				writeString( out, snippet.getStrings() );
+			}
+		}
+	}
+	
+	/** Reads fields written by writeTo(). */
+	public static ContentFields readFrom( DataInput in ) throws IOException {
+		ContentFields fields = new ContentFields();
+		
+		fields.appID = readString( in );
+		fields.contentID = readString( in );
+		fields.author = readString( in );
+		fields.title = readString( in );
+		fields.summary = readString( in );
+		fields.body = readString( in );
+		fields.publicationDate = readString( in );
+		fields.languageCode = readString( in );
+		fields.comments = readString( in );
+		fields.product = readString( in );
+		fields.version = readString( in );
+		fields.tags = readString( in );
+		fields.category = readString( in );
+		fields.extraData = readString( in );
+		fields.contentType = readString( in );
+		fields.workaround = readString( in );
+		fields.allSource = readString( in );
+		fields.isHTML = in.readBoolean();
+		
+		int snippetCount = in.readInt();
+		if( snippetCount >= 0 )
+		{
+			fields.snippets = new SourceCodeSnippet[ snippetCount ];
+			
+			for( int i = 0; i < snippetCount; ++i )
+			{
+				SourceCodeSnippet snippet = new SourceCodeSnippet();
+				
+				snippet.setLanguage( readString( in ) );
+				snippet.setComments( readString( in ) );
+				snippet.setSource( readString( in ) );
+				snippet.setSourceWithoutComments( readString( in ) );
+				snippet.setSourceWithoutStrings( readString( in ) );
+				snippet.setStrings( readString( in ) );
+				
+				fields.snippets[ i ] = snippet;
+			}
+		}
+		
+		return fields;
+	}
+	
+	/** Writes a string that may be null as UTF-8. Unlike writeUTF(), this isn't limited to
+	 * 64KB. */
+	static void writeString( DataOutput out, String value ) throws IOException {
+		if( value == null )
+		{
+			out.writeInt( -1 );
+			return;
+		}
+		
+		byte[] bytes = value.getBytes( "UTF-8" );
+		
+		out.writeInt( bytes.length );
+		out.write( bytes );
+	}
+	
+	/** Reads a string written by writeString(). */
+	static String readString( DataInput in ) throws IOException {
+		int length = in.readInt();
+		if( length < 0 )
+			return null;
+		
+		byte[] bytes = new byte[ length ];
+		in.readFully( bytes );
+		
+		return new String( bytes, "UTF-8" );
+	}
+	
+	/** Returns the estimated memory size of the content in bytes. */
+	public long getByteSize() {
+		long size = appID.length() + contentID.length() + author.length() + title.length() + summary.length() +
+			body.length() + publicationDate.length() + languageCode.length() + comments.length() + product.length() +
+			version.length() + tags.length() + category.length() + extraData.length() + contentType.length() +
+			workaround.length() + allSource.length();
+		
+		if( this.snippets != null )
+		{
+			for( SourceCodeSnippet snippet : snippets )
+				size += length( snippet.getComments() ) + length( snippet.getSource() ) + length( snippet.getSourceWithoutComments() ) +
+					length( snippet.getSourceWithoutStrings() ) + length( snippet.getStrings() );
+		}
+		
+		// Strings take two bytes per character.
+		return size * 2;
+	}
+	
 	/** Convert the body from HTML to plain text. */
 	public void convertHTMLToText() {
-		this.body = processEntities( this.body.replaceAll( "<\\/?[a-zA-Z][^>]*>", "" ) );
-		this.comments = processEntities( this.comments.replaceAll( "<\\/?[a-zA-Z][^>]*>", "" ) );
+		this.body = HTMLStripper.strip( this.body );
+		this.comments = HTMLStripper.strip( this.comments );
+		this.isHTML = false;
 	}
 	
-	/** Validate the date format. */
+	/** Returns a date in the yyyymmdd[hhmmss] format of the publication date, in seconds
+	 * since 1970 UTC. */
+	public static long parseDate( String date ) throws EngineException {
+		if( !date.matches( DATE_PATTERN ) )
+			throw new EngineException( "Date format '" + date + "' incorrect. Required format yyyymmdd[hhmmss]." );
+		
+		Long seconds = toSeconds( date );
+		if( seconds == null )
+			throw new EngineException( "Date '" + date + "' is not a valid date." );
+		
+		return seconds;
+	}
+	
+	/** Validate the date format and value. */
 	private void validateDate() throws EngineException {
-		if( this.publicationDate.length() > 0 && !this.publicationDate.matches( "[0-9]{4}[0-9]{2}[0-9]{2}([0-9]{2}[0-9]{2}[0-9]{2})?" ) )
-			throw new EngineException( "Date format '" + this.publicationDate + "' incorrect. Required format yyyymmdd[hhmmss]." );
+		if( this.publicationDate.length() > 0 )
+			parseDate( this.publicationDate );
+	}
+	
+	/** Converts a date to seconds since 1970 UTC, or returns null if it isn't a valid date.
+	 * A date without a time is the start of the day. */
+	private static Long toSeconds( String date ) {
+		if( !date.matches( DATE_PATTERN ) )
+			return null;
+		
+		GregorianCalendar calendar = new GregorianCalendar( TimeZone.getTimeZone( "UTC" ) );
+		calendar.clear();
+		calendar.setLenient( false );
+		
+		calendar.set( Integer.parseInt( date.substring( 0, 4 ) ), Integer.parseInt( date.substring( 4, 6 ) ) - 1,
+			Integer.parseInt( date.substring( 6, 8 ) ) );
+		
+		if( date.length() > 8 )
+		{
+			calendar.set( GregorianCalendar.HOUR_OF_DAY, Integer.parseInt( date.substring( 8, 10 ) ) );
+			calendar.set( GregorianCalendar.MINUTE, Integer.parseInt( date.substring( 10, 12 ) ) );
+			calendar.set( GregorianCalendar.SECOND, Integer.parseInt( date.substring( 12, 14 ) ) );
+		}
+		
+		try
+		{
+			return calendar.getTimeInMillis() / 1000;
+		}
+		catch( IllegalArgumentException e )
+		{
+			// A field is out of range, such as month 13 or day 32.
+			return null;
+		}
 	}
 	
 	/** Validate the content ID */
@@ -314,14 +540,9 @@ public class ContentFields {
 		}
 	}
 	
-	/** Convert or remove all HTML entities */
-	private String processEntities( String html ) {
-		html = html.replaceAll( "&nbsp;", " " );
-		html = html.replaceAll( "&#160;", " " );
-		html = html.replaceAll( "&quot;", "\"" );
-		html = html.replaceAll( "&((#[0-9]+)|([a-z]+));", " " );
-		
-		return html;
+	/** Returns the length of a string that may be null. */
+	private static int length( String value ) {
+		return ( value != null ) ? value.length() : 0;
 	}
 	
 	/** Only adds fields to the document that aren't empty. */
@@ -0,0 +1,41 @@
+package com.codegear.dn.search.engine;
+
+/** The number of hits with a certain value of a facet field. */
+public class FacetCount {
+	private String field = null;
+	private String value = null;
+	private int count = 0;
+	
+	public FacetCount() {
+	}
+	
+	public FacetCount( String field, String value, int count ) {
+		this.field = field;
+		this.value = value;
+		this.count = count;
+	}
+	
+	public String getField() {
+		return field;
+	}
+	
+	public void setField( String property1 ) {
+		this.field = property1;
+	}
+	
+	public String getValue() {
+		return value;
+	}
+	
+	public void setValue( String property1 ) {
+		this.value = property1;
+	}
+	
+	public int getCount() {
+		return count;
+	}
+	
+	public void setCount( int property1 ) {
+		this.count = property1;
+	}
+}
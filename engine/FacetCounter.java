@@ -0,0 +1,134 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Scorer;
+
+/** Counts the hits of a search by value of the facet fields, in the same pass over the
+ * matching documents as the search itself.
+ * 
+ * The facet fields are un-tokenized, so every document has at most one value of each.
+ * The value ordinals of each segment are read from the field cache, which is kept per
+ * segment, so a reopen only reads the ordinals of the new segments. Hits are counted in
+ * an array indexed by ordinal, and the counts of a segment are only translated to values
+ * once the segment is done. */
+class FacetCounter {
+	/** The fields whose values are counted. */
+	private String[] fields = null;
+	
+	/** The counts of the finished segments, by value, for each field. */
+	private ArrayList<HashMap<String, Integer>> valueCounts = new ArrayList<HashMap<String, Integer>>();
+	
+	/** The ordinals of the current segment and their counts, for each field. */
+	private FieldCache.StringIndex[] segmentIndexes = null;
+	private int[][] segmentCounts = null;
+	
+	public FacetCounter( String[] fields ) {
+		this.fields = fields;
+		
+		for( int i = 0; i < fields.length; ++i )
+			valueCounts.add( new HashMap<String, Integer>() );
+	}
+	
+	/** Returns a collector passing the hits to collector after counting them. */
+	public Collector wrap( final Collector collector ) {
+		return new Collector() {
+			public void setScorer( Scorer scorer ) throws IOException {
+				collector.setScorer( scorer );
+			}
+			
+			public void collect( int doc ) throws IOException {
+				for( int i = 0; i < segmentCounts.length; ++i )
+					++segmentCounts[ i ][ segmentIndexes[ i ].order[ doc ] ];
+				
+				collector.collect( doc );
+			}
+			
+			public void setNextReader( IndexReader reader, int docBase ) throws IOException {
+				startSegment( reader );
+				
+				collector.setNextReader( reader, docBase );
+			}
+			
+			public boolean acceptsDocsOutOfOrder() {
+				return collector.acceptsDocsOutOfOrder();
+			}
+		};
+	}
+	
+	/** Returns the counts of the values with at least one hit, grouped by field in the
+	 * order of the fields, with the most frequent values of each field first. */
+	public FacetCount[] getFacetCounts() {
+		finishSegment();
+		
+		ArrayList<FacetCount> counts = new ArrayList<FacetCount>();
+		
+		for( int i = 0; i < fields.length; ++i )
+		{
+			ArrayList<FacetCount> fieldCounts = new ArrayList<FacetCount>();
+			
+			for( Map.Entry<String, Integer> entry : valueCounts.get( i ).entrySet() )
+				fieldCounts.add( new FacetCount( fields[ i ], entry.getKey(), entry.getValue() ) );
+			
+			Collections.sort( fieldCounts, new Comparator<FacetCount>() {
+				public int compare( FacetCount a, FacetCount b ) {
+					if( a.getCount() != b.getCount() )
+						return ( a.getCount() > b.getCount() ) ? -1 : 1;
+					
+					return a.getValue().compareTo( b.getValue() );
+				}
+			} );
+			
+			counts.addAll( fieldCounts );
+		}
+		
+		return counts.toArray( new FacetCount[ counts.size() ] );
+	}
+	
+	/** Adds the counts of the current segment to the totals, then loads the ordinals of the
+	 * next segment. */
+	private void startSegment( IndexReader reader ) throws IOException {
+		finishSegment();
+		
+		segmentIndexes = new FieldCache.StringIndex[ fields.length ];
+		segmentCounts = new int[ fields.length ][];
+		
+		for( int i = 0; i < fields.length; ++i )
+		{
+			segmentIndexes[ i ] = FieldCache.DEFAULT.getStringIndex( reader, fields[ i ] );
+			segmentCounts[ i ] = new int[ segmentIndexes[ i ].lookup.length ];
+		}
+	}
+	
+	private void finishSegment() {
+		if( segmentCounts == null )
+			return;
+		
+		for( int i = 0; i < fields.length; ++i )
+		{
+			HashMap<String, Integer> fieldCounts = valueCounts.get( i );
+			String[] lookup = segmentIndexes[ i ].lookup;
+			
+			// Ordinal 0 is used by the documents without a value.
+			for( int ord = 1; ord < lookup.length; ++ord )
+			{
+				if( segmentCounts[ i ][ ord ] == 0 )
+					continue;
+				
+				Integer count = fieldCounts.get( lookup[ ord ] );
+				fieldCounts.put( lookup[ ord ], ( count == null ) ? segmentCounts[ i ][ ord ] : count + segmentCounts[ i ][ ord ] );
+			}
+		}
+		
+		segmentIndexes = null;
+		segmentCounts = null;
+	}
+}
@@ -0,0 +1,66 @@
+package com.codegear.dn.search.engine;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+
+/** Bounded LRU cache of the filters restricting searches to the documents with a certain
+ * value of an un-tokenized field, such as the appID or the language.
+ * 
+ * Each filter caches one bitset per segment reader. Since a reopened reader shares the
+ * readers of its unchanged segments, only the bitsets of the new or changed segments are
+ * built after a reopen. Filters on several fields intersect the cached bitsets. */
+class FilterCache {
+	/** Default maximum number of field values whose filters are kept. */
+	public static final int DefaultCacheSize = 256;
+	
+	/** The filters, by field and value, in access order. */
+	private LinkedHashMap<Term, Filter> filters = null;
+	
+	public FilterCache( final int cacheSize ) {
+		filters = new LinkedHashMap<Term, Filter>( 16, 0.75f, true ) {
+			protected boolean removeEldestEntry( Map.Entry<Term, Filter> eldest ) {
+				return size() > cacheSize;
+			}
+		};
+	}
+	
+	/** Returns the filter accepting the documents matching all the terms, or null if
+	 * terms is empty. */
+	public Filter getFilter( List<Term> terms ) {
+		if( terms.isEmpty() )
+			return null;
+		
+		Filter[] termFilters = new Filter[ terms.size() ];
+		
+		for( int i = 0; i < termFilters.length; ++i )
+			termFilters[ i ] = getFilter( terms.get( i ) );
+		
+		if( termFilters.length == 1 )
+			return termFilters[ 0 ];
+		
+		return new IntersectionFilter( termFilters );
+	}
+	
+	/** Returns the cached filter of a single term, creating it if needed. */
+	private Filter getFilter( Term term ) {
+		synchronized( filters )
+		{
+			Filter filter = filters.get( term );
+			
+			if( filter == null )
+			{
+				filter = new CachingWrapperFilter( new QueryWrapperFilter( new TermQuery( term ) ) );
+				filters.put( term, filter );
+			}
+			
+			return filter;
+		}
+	}
+}
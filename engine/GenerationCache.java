@@ -0,0 +1,117 @@
+package com.codegear.dn.search.engine;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/** Bounded LRU cache whose entries are only valid for a single searcher generation
+ * (see SearcherProvider.getGeneration()).
+ * 
+ * As soon as a newer generation is seen by get() or put(), all the entries are dropped,
+ * and values computed against an older generation are never stored. Entries are evicted
+ * in LRU order when either the number of entries or their total weight exceeds the
+ * configured maximum. */
+public class GenerationCache<K, V> {
+	private int maxEntries;
+	private long maxWeight;
+	
+	/** The cached values, in access order. */
+	private LinkedHashMap<K, CacheEntry<V>> entries = new LinkedHashMap<K, CacheEntry<V>>( 16, 0.75f, true );
+	
+	/** The generation of the cached entries. */
+	private long generation = -1;
+	
+	/** The total weight of the cached entries. */
+	private long totalWeight = 0;
+	
+	private AtomicLong hitCount = new AtomicLong();
+	private AtomicLong missCount = new AtomicLong();
+	
+	public GenerationCache( int maxEntries, long maxWeight ) {
+		this.maxEntries = maxEntries;
+		this.maxWeight = maxWeight;
+	}
+	
+	/** Returns the value cached for key, or null if there is no value for this generation. */
+	public V get( K key, long generation ) {
+		CacheEntry<V> entry = null;
+		
+		synchronized( this )
+		{
+			if( checkGeneration( generation ) )
+				entry = entries.get( key );
+		}
+		
+		if( entry == null )
+		{
+			missCount.incrementAndGet();
+			return null;
+		}
+		
+		hitCount.incrementAndGet();
+		return entry.value;
+	}
+	
+	/** Caches value for key. The value is discarded if it was computed against an older
+	 * generation, or if its weight exceeds the maximum weight of the cache. */
+	public synchronized void put( K key, V value, int weight, long generation ) {
+		if( !checkGeneration( generation ) || weight > maxWeight )
+			return;
+		
+		CacheEntry<V> previous = entries.put( key, new CacheEntry<V>( value, weight ) );
+		if( previous != null )
+			totalWeight -= previous.weight;
+		
+		totalWeight += weight;
+		
+		// Evict the least recently used entries until we are within the limits.
+		Iterator<CacheEntry<V>> i = entries.values().iterator();
+		
+		while( ( entries.size() > maxEntries || totalWeight > maxWeight ) && i.hasNext() )
+		{
+			totalWeight -= i.next().weight;
+			i.remove();
+		}
+	}
+	
+	/** Removes all the entries. */
+	public synchronized void clear() {
+		entries.clear();
+		totalWeight = 0;
+	}
+	
+	public synchronized int size() {
+		return entries.size();
+	}
+	
+	public long getHitCount() {
+		return hitCount.get();
+	}
+	
+	public long getMissCount() {
+		return missCount.get();
+	}
+	
+	/** Drops the entries if generation is newer than the cached one. Returns false if
+	 * generation is older than the cached one. */
+	private boolean checkGeneration( long generation ) {
+		if( generation > this.generation )
+		{
+			clear();
+			this.generation = generation;
+		}
+		
+		return generation == this.generation;
+	}
+}
+
+/** A cached value along with its weight. */
+class CacheEntry<V> {
+	public V value;
+	public int weight;
+	
+	public CacheEntry( V value, int weight ) {
+		this.value = value;
+		this.weight = weight;
+	}
+}
@@ -0,0 +1,163 @@
+package com.codegear.dn.search.engine;
+
+/** Single pass, allocation-light HTML tag and entity stripper.
+ * 
+ * The output is identical to removing the tags matched by the regular expression
+ * <\/?[a-zA-Z][^>]*> and then replacing &nbsp;, &#160; and other entities matching
+ * &((#[0-9]+)|([a-z]+)); with a space, and &quot; with a double quote. Entities are
+ * recognized in the output of the tag removal, as they were by the separate passes.
+ * 
+ * Each thread reuses its own character buffer, so converting a document only allocates
+ * the resulting String. */
+public class HTMLStripper {
+	/** Buffers larger than this number of characters are not kept between calls. */
+	private static final int MaxRetainedBufferSize = 1024 * 1024;
+	
+	/** Marks that the input doesn't contain a '>' after the current position. */
+	private static final int NoTagEnd = Integer.MAX_VALUE;
+	
+	/** Entity states: no entity, after '&', after "&#", in the digits of "&#nnn", in
+	 * the letters of "&name". */
+	private static final int NO_ENTITY = 0;
+	private static final int ENTITY_START = 1;
+	private static final int ENTITY_NUMBER_START = 2;
+	private static final int ENTITY_NUMBER = 3;
+	private static final int ENTITY_NAME = 4;
+	
+	/** The stripper instance of each thread. */
+	private static ThreadLocal<HTMLStripper> instances = new ThreadLocal<HTMLStripper>() {
+		protected HTMLStripper initialValue() {
+			return new HTMLStripper();
+		}
+	};
+	
+	/** The output buffer. */
+	private char[] buffer = new char[ 1024 ];
+	
+	/** The number of characters in the output buffer. */
+	private int length = 0;
+	
+	/** The state of the entity being recognized at the end of the output. */
+	private int entityState = NO_ENTITY;
+	
+	/** The position of the '&' that starts the entity being recognized. */
+	private int entityStart = 0;
+	
+	/** Strips the tags and entities from html, using the stripper of the current thread. */
+	public static String strip( String html ) {
+		return instances.get().convert( html );
+	}
+	
+	/** Strips the tags and entities from html. */
+	public String convert( String html ) {
+		int n = html.length();
+		
+		if( buffer.length < n )
+			buffer = new char[ n ];
+		
+		length = 0;
+		entityState = NO_ENTITY;
+		
+		// The position of the next '>', which ends any tag that starts before it.
+		int tagEnd = -1;
+		
+		for( int i = 0; i < n; ++i )
+		{
+			char c = html.charAt( i );
+			
+			if( c == '<' )
+			{
+				int nameStart = i + 1;
+				if( nameStart < n && html.charAt( nameStart ) == '/' )
+					++nameStart;
+				
+				if( nameStart < n && isLetter( html.charAt( nameStart ) ) )
+				{
+					if( tagEnd < nameStart )
+					{
+						tagEnd = html.indexOf( '>', nameStart );
+						if( tagEnd < 0 )
+							tagEnd = NoTagEnd;
+					}
+					
+					// Skip the tag. Without a closing '>' this isn't a tag.
+					if( tagEnd != NoTagEnd )
+					{
+						i = tagEnd;
+						continue;
+					}
+				}
+			}
+			
+			append( c );
+		}
+		
+		String result = new String( buffer, 0, length );
+		
+		if( buffer.length > MaxRetainedBufferSize )
+			buffer = new char[ 1024 ];
+		
+		return result;
+	}
+	
+	/** Appends a character of the tag-stripped text, replacing an entity when its closing
+	 * ';' is appended. */
+	private void append( char c ) {
+		if( c == '&' )
+		{
+			entityState = ENTITY_START;
+			entityStart = length;
+		}
+		else if( entityState != NO_ENTITY )
+		{
+			switch( entityState )
+			{
+			case ENTITY_START:
+				if( c == '#' )
+					entityState = ENTITY_NUMBER_START;
+				else if( c >= 'a' && c <= 'z' )
+					entityState = ENTITY_NAME;
+				else
+					entityState = NO_ENTITY;
+				break;
+				
+			case ENTITY_NUMBER_START:
+				entityState = ( c >= '0' && c <= '9' ) ? ENTITY_NUMBER : NO_ENTITY;
+				break;
+				
+			case ENTITY_NUMBER:
+			case ENTITY_NAME:
+				if( c == ';' )
+				{
+					replaceEntity();
+					return;
+				}
+				
+				if( entityState == ENTITY_NUMBER ? ( c < '0' || c > '9' ) : ( c < 'a' || c > 'z' ) )
+					entityState = NO_ENTITY;
+				break;
+			}
+		}
+		
+		buffer[ length++ ] = c;
+	}
+	
+	/** Replaces the entity at the end of the output, whose ';' hasn't been appended. */
+	private void replaceEntity() {
+		char replacement = ' ';
+		
+		if( length - entityStart == 5 && buffer[ entityStart + 1 ] == 'q' && buffer[ entityStart + 2 ] == 'u' &&
+			buffer[ entityStart + 3 ] == 'o' && buffer[ entityStart + 4 ] == 't' )
+		{
+			replacement = '"';
+		}
+		
+		length = entityStart;
+		buffer[ length++ ] = replacement;
+		entityState = NO_ENTITY;
+	}
+	
+	private static boolean isLetter( char c ) {
+		return ( c >= 'a' && c <= 'z' ) || ( c >= 'A' && c <= 'Z' );
+	}
+}
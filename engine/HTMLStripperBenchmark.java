@@ -0,0 +1,242 @@
+package com.codegear.dn.search.engine;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/** Checks that HTMLStripper produces the same output as the regular expression chain it
+ * replaced, and compares their throughput.
+ * 
+ * Usage: java com.codegear.dn.search.engine.HTMLStripperBenchmark [-inputs n] [-seed n]
+ * [file.html ...]
+ * 
+ * The check runs over n randomly generated inputs (default 200000), built from tags,
+ * entities, and the edge cases of both, such as unclosed tags and entities split by a tag.
+ * The throughput is then measured on the specified HTML files, or on a generated article
+ * when no file is specified. The program exits with status 1 if any output differs. */
+public class HTMLStripperBenchmark {
+	/** Default number of generated inputs to compare. */
+	public static final int DefaultInputCount = 200000;
+	
+	/** Minimum time in milliseconds each conversion is timed for. */
+	public static final long MeasureTime = 3000;
+	
+	/** Fragments the generated inputs are built from. */
+	private static final String[] Fragments = new String[] {
+		"text", " ", "Delphi 2009", "\n", "a < b", "x>y", "<", ">", "/", "&", ";", "#",
+		"<p>", "</p>", "<br/>", "<a href=\"http://example.com/?a=1&b=2\">", "</a>", "<B>", "<h1 class=x>",
+		"<img src='a.png' alt=\"&quot;\">", "<!-- comment -->", "<!DOCTYPE html>", "< p>", "<1>", "</>", "<p",
+		"&nbsp;", "&#160;", "&quot;", "&amp;", "&lt;", "&#39;", "&#;", "&Amp;", "&nbsp", "&#x41;", "&&amp;",
+		"&nb<b>sp;", "&#1<i>60;", "&q</b>uot;", "&<br>amp;"
+	};
+	
+	public static void main( String[] args ) throws IOException {
+		int inputCount = DefaultInputCount;
+		long seed = 20091001;
+		ArrayList<String> files = new ArrayList<String>();
+		
+		for( int i = 0; i < args.length; ++i )
+		{
+			if( args[ i ].equals( "-inputs" ) && i + 1 < args.length )
+				inputCount = Integer.parseInt( args[ ++i ] );
+			else if( args[ i ].equals( "-seed" ) && i + 1 < args.length )
+				seed = Long.parseLong( args[ ++i ] );
+			else
+				files.add( args[ i ] );
+		}
+		
+		// Compare the outputs on the generated inputs.
+		Random random = new Random( seed );
+		
+		for( int i = 0; i < inputCount; ++i )
+		{
+			String html = generateInput( random );
+			
+			if( !checkEquivalence( "generated input " + i, html ) )
+				System.exit( 1 );
+		}
+		
+		System.out.println( "Generated inputs: " + inputCount + " identical outputs (seed " + seed + ")." );
+		
+		// Compare the outputs and the throughput on the real HTML.
+		List<String> documents = new ArrayList<String>();
+		List<String> names = new ArrayList<String>();
+		
+		for( String file : files )
+		{
+			documents.add( readFile( file ) );
+			names.add( file );
+		}
+		
+		if( documents.isEmpty() )
+		{
+			documents.add( generateArticle( new Random( seed ), 1024 * 1024 ) );
+			names.add( "generated article" );
+		}
+		
+		for( int i = 0; i < documents.size(); ++i )
+		{
+			String html = documents.get( i );
+			
+			if( !checkEquivalence( names.get( i ), html ) )
+				System.exit( 1 );
+			
+			double regexRate = measure( html, false );
+			double stripperRate = measure( html, true );
+			
+			System.out.println( names.get( i ) + " (" + html.length() + " chars): regex chain " + format( regexRate ) +
+				" MB/s, HTMLStripper " + format( stripperRate ) + " MB/s, " + format( stripperRate / regexRate ) + "x." );
+		}
+	}
+	
+	/** The conversion performed by ContentFields before HTMLStripper. */
+	static String regexStrip( String html ) {
+		html = html.replaceAll( "<\\/?[a-zA-Z][^>]*>", "" );
+		html = html.replaceAll( "&nbsp;", " " );
+		html = html.replaceAll( "&#160;", " " );
+		html = html.replaceAll( "&quot;", "\"" );
+		html = html.replaceAll( "&((#[0-9]+)|([a-z]+));", " " );
+		
+		return html;
+	}
+	
+	/** Compares the outputs of both conversions, printing the input if they differ. */
+	private static boolean checkEquivalence( String name, String html ) {
+		String expected = regexStrip( html );
+		String actual = HTMLStripper.strip( html );
+		
+		if( expected.equals( actual ) )
+			return true;
+		
+		System.out.println( "Output differs for " + name + ":" );
+		
+		if( html.length() <= 1000 )
+		{
+			System.out.println( "  input:    " + html );
+			System.out.println( "  regex:    " + expected );
+			System.out.println( "  stripper: " + actual );
+		}
+		
+		return false;
+	}
+	
+	/** Returns the throughput of a conversion of html in MB of input per second, after
+	 * warming it up. */
+	private static double measure( String html, boolean useStripper ) {
+		long checksum = 0;
+		
+		for( int i = 0; i < 20; ++i )
+			checksum += convert( html, useStripper ).length();
+		
+		long count = 0;
+		long startTime = System.nanoTime();
+		long elapsed;
+		
+		do
+		{
+			checksum += convert( html, useStripper ).length();
+			++count;
+			
+			elapsed = System.nanoTime() - startTime;
+		}
+		while( elapsed < MeasureTime * 1000000L );
+		
+		// Keeps the conversions from being optimized away.
+		if( checksum == 42 )
+			System.out.println();
+		
+		return count * html.length() * 2 / ( elapsed / 1000000000.0 ) / ( 1024 * 1024 );
+	}
+	
+	private static String convert( String html, boolean useStripper ) {
+		return useStripper ? HTMLStripper.strip( html ) : regexStrip( html );
+	}
+	
+	/** Generates a short input from random fragments. */
+	private static String generateInput( Random random ) {
+		StringBuilder html = new StringBuilder();
+		int fragmentCount = random.nextInt( 12 );
+		
+		for( int i = 0; i < fragmentCount; ++i )
+			html.append( Fragments[ random.nextInt( Fragments.length ) ] );
+		
+		return html.toString();
+	}
+	
+	/** Generates an article of about the specified number of characters, with the markup
+	 * density of a typical knowledge base page. */
+	private static String generateArticle( Random random, int size ) {
+		String[] words = new String[] { "the", "component", "Delphi", "database", "connection", "query",
+			"form", "VCL", "compiler", "unit", "property", "event", "handler", "string", "record" };
+		
+		StringBuilder html = new StringBuilder( size + 1024 );
+		html.append( "<html><head><title>Article</title></head><body>\n" );
+		
+		while( html.length() < size )
+		{
+			html.append( "<h2>" ).append( words[ random.nextInt( words.length ) ] ).append( "</h2>\n<p>" );
+			
+			int wordCount = 50 + random.nextInt( 100 );
+			
+			for( int i = 0; i < wordCount; ++i )
+			{
+				String word = words[ random.nextInt( words.length ) ];
+				
+				switch( random.nextInt( 20 ) )
+				{
+				case 0:
+					html.append( "<b>" ).append( word ).append( "</b>" );
+					break;
+				case 1:
+					html.append( "<a href=\"/article/" ).append( random.nextInt( 100000 ) ).append( "\">" ).append( word ).append( "</a>" );
+					break;
+				case 2:
+					html.append( "&quot;" ).append( word ).append( "&quot;" );
+					break;
+				case 3:
+					html.append( word ).append( "&nbsp;&amp;" );
+					break;
+				default:
+					html.append( word );
+				}
+				
+				html.append( ' ' );
+			}
+			
+			html.append( "</p>\n<pre>if a &lt; b then\n  Result := a;</pre>\n" );
+		}
+		
+		html.append( "</body></html>\n" );
+		
+		return html.toString();
+	}
+	
+	private static String readFile( String fileName ) throws IOException {
+		Reader reader = new InputStreamReader( new FileInputStream( new File( fileName ) ), "UTF-8" );
+		
+		try
+		{
+			StringBuilder text = new StringBuilder();
+			char[] buffer = new char[ 8192 ];
+			int count;
+			
+			while( ( count = reader.read( buffer ) ) > 0 )
+				text.append( buffer, 0, count );
+			
+			return text.toString();
+		}
+		finally
+		{
+			reader.close();
+		}
+	}
+	
+	private static String format( double value ) {
+		return String.valueOf( Math.round( value * 10 ) / 10.0 );
+	}
+}
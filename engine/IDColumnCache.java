@@ -0,0 +1,132 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.util.ReaderUtil;
+
+/** The appID and contentID of every document of a reader, held in arrays, so that results
+ * only requiring the IDs are built without loading any stored document.
+ * 
+ * The arrays are built per segment and cached by the segment's field cache key, which is
+ * shared by the readers reopened from it. A reopen therefore only reads the IDs of the new
+ * segments. The cached arrays are released when their segment is no longer referenced. */
+class IDColumnCache {
+	/** The IDs of each segment, by field cache key. */
+	private static Map<Object, SegmentIDs> segmentCache = new WeakHashMap<Object, SegmentIDs>();
+	
+	/** The IDs of the segments of the reader, and the first document of each segment. */
+	private SegmentIDs[] segments = null;
+	private int[] docStarts = null;
+	
+	/** Creates the ID column of a reader, reading the IDs of the segments that are not
+	 * cached yet. */
+	public IDColumnCache( IndexReader reader ) throws IOException {
+		ArrayList<IndexReader> subReaders = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders( subReaders, reader );
+		
+		segments = new SegmentIDs[ subReaders.size() ];
+		docStarts = new int[ subReaders.size() ];
+		
+		int docStart = 0;
+		
+		for( int i = 0; i < segments.length; ++i )
+		{
+			IndexReader subReader = subReaders.get( i );
+			
+			segments[ i ] = getSegmentIDs( subReader );
+			docStarts[ i ] = docStart;
+			
+			docStart += subReader.maxDoc();
+		}
+	}
+	
+	/** Creates a result with only the IDs and the score of a document. */
+	public Result createResult( int doc, float score ) {
+		int segment = ReaderUtil.subIndex( doc, docStarts );
+		int segmentDoc = doc - docStarts[ segment ];
+		
+		return new Result( segments[ segment ].appIDs[ segmentDoc ], segments[ segment ].contentIDs[ segmentDoc ], score );
+	}
+	
+	/** Returns the cached IDs of a segment, reading them if needed. */
+	private static SegmentIDs getSegmentIDs( IndexReader segment ) throws IOException {
+		Object key = segment.getFieldCacheKey();
+		
+		synchronized( segmentCache )
+		{
+			SegmentIDs ids = segmentCache.get( key );
+			if( ids != null )
+				return ids;
+		}
+		
+		// Read the IDs outside the lock. Another thread may read the same segment
+		// concurrently, in which case both arrays are equivalent.
+		SegmentIDs ids = readSegmentIDs( segment );
+		
+		synchronized( segmentCache )
+		{
+			segmentCache.put( key, ids );
+		}
+		
+		return ids;
+	}
+	
+	/** Reads the IDs of a segment by walking the terms of the ID field. */
+	private static SegmentIDs readSegmentIDs( IndexReader segment ) throws IOException {
+		SegmentIDs ids = new SegmentIDs( segment.maxDoc() );
+		
+		TermEnum terms = segment.terms( new Term( ContentFields.ID_FIELD, "" ) );
+		TermDocs termDocs = segment.termDocs();
+		
+		try
+		{
+			do
+			{
+				Term term = terms.term();
+				if( term == null || !term.field().equals( ContentFields.ID_FIELD ) )
+					break;
+				
+				String luceneID = term.text();
+				int i = luceneID.indexOf( "." );
+				
+				// The appIDs are shared by many documents, so a single instance of each is kept.
+				String appID = ( i < 0 ) ? "" : luceneID.substring( 0, i ).intern();
+				String contentID = ( i < 0 ) ? "" : luceneID.substring( i + 1 );
+				
+				termDocs.seek( terms );
+				
+				while( termDocs.next() )
+				{
+					ids.appIDs[ termDocs.doc() ] = appID;
+					ids.contentIDs[ termDocs.doc() ] = contentID;
+				}
+			}
+			while( terms.next() );
+		}
+		finally
+		{
+			termDocs.close();
+			terms.close();
+		}
+		
+		return ids;
+	}
+}
+
+/** The IDs of the documents of a segment, by document number. */
+class SegmentIDs {
+	public String[] appIDs;
+	public String[] contentIDs;
+	
+	public SegmentIDs( int maxDoc ) {
+		appIDs = new String[ maxDoc ];
+		contentIDs = new String[ maxDoc ];
+	}
+}
@@ -0,0 +1,8 @@
+package com.codegear.dn.search.engine;
+
+/** Receives notifications from LuceneIndexer whenever changes have been flushed to the
+ * index, and are therefore visible to newly opened readers. */
+public interface IndexChangeListener {
+	/** Called by the indexer thread after the index has been flushed or optimized. */
+	public void indexChanged();
+}
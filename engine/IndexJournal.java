@@ -0,0 +1,381 @@
+package com.codegear.dn.search.engine;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/** Append-only, memory-mapped write-ahead journal of the jobs accepted by the indexer.
+ * 
+ * Every queued job is appended to the journal before it is acknowledged, so that jobs
+ * which haven't been flushed to the index yet survive a crash or redeploy. The journal is
+ * made up of fixed size segment files. Each record consists of the payload length, the
+ * CRC32 of the payload and the serialized QueueJob; a zero length marks the end of the
+ * written records of a segment.
+ * 
+ * Producers wait for their records to be synced to disk with sync(). Concurrent callers
+ * share a single force() of the segment (group commit). Once the indexer has flushed the
+ * jobs up to some position to the index, it records that position with checkpoint(), and
+ * on startup replay() returns the jobs written after the last checkpoint.
+ * 
+ * Positions are encoded as the segment number in the upper 32 bits and the offset after
+ * the record in the lower 32 bits, so later records always have larger positions. */
+class IndexJournal {
+	/** Default size of a segment file in MB. */
+	public static final int DefaultSegmentSize = 64;
+	
+	/** Size of the record header: the payload length and the CRC. */
+	private static final int HeaderSize = 8;
+	
+	private static final String SegmentPrefix = "journal-";
+	private static final String SegmentSuffix = ".log";
+	private static final String CheckpointFile = "checkpoint";
+	private static final String CheckpointTempFile = "checkpoint.tmp";
+	
+	/** The directory containing the journal files. */
+	private File directory = null;
+	
+	/** The minimum size of a segment file in bytes. */
+	private int segmentSize = 0;
+	
+	/** The segment records are appended to. */
+	private int segment = 0;
+	
+	/** The mapped buffer of the current segment. */
+	private MappedByteBuffer buffer = null;
+	
+	/** The position of the last checkpoint. */
+	private long checkpointPosition = 0;
+	
+	/** Lock and state of the group commit. */
+	private Object syncLock = new Object();
+	private boolean syncing = false;
+	private long syncedPosition = 0;
+	
+	/** Opens the journal in the specified directory. New records are always appended to a
+	 * new segment, so that a record torn by a crash is never followed by new ones. */
+	public IndexJournal( File directory, int segmentSize ) throws IOException {
+		this.directory = directory;
+		this.segmentSize = segmentSize;
+		
+		if( !directory.isDirectory() && !directory.mkdirs() )
+			throw new IOException( "Cannot create journal directory '" + directory + "'." );
+		
+		checkpointPosition = readCheckpoint();
+		
+		openSegment( getLastSegment() + 1, segmentSize );
+	}
+	
+	/** Returns the jobs written after the last checkpoint, in journal order, with their
+	 * journal positions set. */
+	public List<QueueJob> replay() throws IOException {
+		ArrayList<QueueJob> jobs = new ArrayList<QueueJob>();
+		
+		for( int i = getSegment( checkpointPosition ); i < segment; ++i )
+		{
+			File file = getSegmentFile( i );
+			if( !file.exists() )
+				continue;
+			
+			int offset = ( i == getSegment( checkpointPosition ) ) ? getOffset( checkpointPosition ) : 0;
+			
+			replaySegment( file, i, offset, jobs );
+		}
+		
+		return jobs;
+	}
+	
+	/** Appends a job, serialized with serialize(), to the journal and sets its journal
+	 * position. The record isn't durable until sync() has been called for the position. */
+	public void append( QueueJob job, byte[] payload ) throws IOException {
+		CRC32 crc = new CRC32();
+		crc.update( payload );
+		
+		synchronized( this )
+		{
+			// Keep room for the zero length that marks the end of the records.
+			int recordSize = HeaderSize + payload.length;
+			
+			if( buffer.remaining() < recordSize + 4 )
+			{
+				// Make the current segment durable before moving on, so that only the
+				// last segment can contain torn records.
+				buffer.force();
+				openSegment( segment + 1, Math.max( segmentSize, recordSize + 4 ) );
+			}
+			
+			buffer.putInt( payload.length );
+			buffer.putInt( (int)crc.getValue() );
+			buffer.put( payload );
+			
+			job.setJournalPosition( getPosition( segment, buffer.position() ) );
+		}
+	}
+	
+	/** Waits until the records up to position are durable. Callers arriving while a sync
+	 * is in progress wait for it, and then share the next one. */
+	public void sync( long position ) throws IOException {
+		while( true )
+		{
+			synchronized( syncLock )
+			{
+				try
+				{
+					while( syncing && syncedPosition < position )
+						syncLock.wait();
+				}
+				catch( InterruptedException ie )
+				{
+					throw new InterruptedIOException( "Interrupted while syncing journal." );
+				}
+				
+				if( syncedPosition >= position )
+					return;
+				
+				syncing = true;
+			}
+			
+			long targetPosition = syncedPosition;
+			
+			try
+			{
+				MappedByteBuffer syncBuffer;
+				
+				synchronized( this )
+				{
+					targetPosition = getPosition( segment, buffer.position() );
+					syncBuffer = buffer;
+				}
+				
+				// Previous segments were forced when the segment was rolled over.
+				syncBuffer.force();
+			}
+			finally
+			{
+				synchronized( syncLock )
+				{
+					syncing = false;
+					syncedPosition = Math.max( syncedPosition, targetPosition );
+					syncLock.notifyAll();
+				}
+			}
+		}
+	}
+	
+	/** Records that all the jobs up to position have been flushed to the index, so that they
+	 * are no longer replayed, and deletes the segments that are no longer needed. */
+	public void checkpoint( long position ) throws IOException {
+		if( position <= checkpointPosition )
+			return;
+		
+		// Write the checkpoint to a temporary file first, so that a crash never leaves a
+		// partially written checkpoint.
+		File tempFile = new File( directory, CheckpointTempFile );
+		FileOutputStream out = new FileOutputStream( tempFile );
+		
+		try
+		{
+			DataOutputStream data = new DataOutputStream( out );
+			data.writeLong( position );
+			data.flush();
+			out.getFD().sync();
+		}
+		finally
+		{
+			out.close();
+		}
+		
+		File file = new File( directory, CheckpointFile );
+		if( file.exists() && !file.delete() )
+			throw new IOException( "Cannot replace journal checkpoint '" + file + "'." );
+		
+		if( !tempFile.renameTo( file ) )
+			throw new IOException( "Cannot rename journal checkpoint '" + tempFile + "'." );
+		
+		checkpointPosition = position;
+		
+		// Delete the segments before the checkpoint.
+		for( int i = getSegment( position ) - 1; i >= 0; --i )
+		{
+			File segmentFile = getSegmentFile( i );
+			if( !segmentFile.exists() )
+				break;
+			
+			if( !segmentFile.delete() )
+				Log.error( "Cannot delete journal segment '" + segmentFile + "'." );
+		}
+	}
+	
+	/** Forces the written records to disk. */
+	public synchronized void close() {
+		buffer.force();
+	}
+	
+	/** Reads the records of a segment from offset onwards, until the end marker or the first
+	 * invalid record. */
+	private void replaySegment( File file, int segmentNumber, int offset, List<QueueJob> jobs ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( file, "r" );
+		
+		try
+		{
+			MappedByteBuffer in = raf.getChannel().map( FileChannel.MapMode.READ_ONLY, 0, raf.length() );
+			in.position( offset );
+			
+			while( in.remaining() >= HeaderSize )
+			{
+				int length = in.getInt();
+				int checksum = in.getInt();
+				
+				if( length <= 0 || length > in.remaining() )
+					break;
+				
+				byte[] payload = new byte[ length ];
+				in.get( payload );
+				
+				CRC32 crc = new CRC32();
+				crc.update( payload );
+				
+				if( (int)crc.getValue() != checksum )
+				{
+					Log.error( "Journal segment '" + file + "' contains a torn record, ignoring the rest of it." );
+					break;
+				}
+				
+				QueueJob job = QueueJob.readFrom( new DataInputStream( new ByteArrayInputStream( payload ) ) );
+				job.setJournalPosition( getPosition( segmentNumber, in.position() ) );
+				
+				jobs.add( job );
+			}
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/** Creates and maps a new segment file. */
+	private void openSegment( int segmentNumber, int size ) throws IOException {
+		RandomAccessFile raf = new RandomAccessFile( getSegmentFile( segmentNumber ), "rw" );
+		
+		try
+		{
+			raf.setLength( size );
+			
+			// The mapping stays valid after the file is closed.
+			buffer = raf.getChannel().map( FileChannel.MapMode.READ_WRITE, 0, size );
+			segment = segmentNumber;
+		}
+		finally
+		{
+			raf.close();
+		}
+	}
+	
+	/** Reads the last checkpoint position. */
+	private long readCheckpoint() throws IOException {
+		File file = new File( directory, CheckpointFile );
+		
+		// A crash between deleting the checkpoint and renaming the new one leaves only
+		// the temporary file, which was completely written.
+		if( !file.exists() )
+			file = new File( directory, CheckpointTempFile );
+		
+		if( !file.exists() || file.length() < 8 )
+			return getPosition( getFirstSegment(), 0 );
+		
+		DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+		
+		try
+		{
+			return in.readLong();
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+	
+	/** Returns the number of the first existing segment, or 0 if there are none. */
+	private int getFirstSegment() {
+		int first = Integer.MAX_VALUE;
+		
+		for( int number : getSegmentNumbers() )
+			first = Math.min( first, number );
+		
+		return ( first == Integer.MAX_VALUE ) ? 0 : first;
+	}
+	
+	/** Returns the number of the last existing segment, or -1 if there are none. */
+	private int getLastSegment() {
+		int last = -1;
+		
+		for( int number : getSegmentNumbers() )
+			last = Math.max( last, number );
+		
+		return last;
+	}
+	
+	/** Returns the numbers of the existing segment files. */
+	private List<Integer> getSegmentNumbers() {
+		ArrayList<Integer> numbers = new ArrayList<Integer>();
+		String[] names = directory.list();
+		
+		if( names != null )
+		{
+			for( String name : names )
+			{
+				if( name.startsWith( SegmentPrefix ) && name.endsWith( SegmentSuffix ) )
+				{
+					try
+					{
+						numbers.add( Integer.parseInt( name.substring( SegmentPrefix.length(), name.length() - SegmentSuffix.length() ) ) );
+					}
+					catch( NumberFormatException e )
+					{
+						// Not a segment file.
+					}
+				}
+			}
+		}
+		
+		return numbers;
+	}
+	
+	private File getSegmentFile( int segmentNumber ) {
+		return new File( directory, SegmentPrefix + String.format( "%010d", segmentNumber ) + SegmentSuffix );
+	}
+	
+	private static long getPosition( int segmentNumber, int offset ) {
+		return ( (long)segmentNumber << 32 ) | ( offset & 0xFFFFFFFFL );
+	}
+	
+	private static int getSegment( long position ) {
+		return (int)( position >>> 32 );
+	}
+	
+	private static int getOffset( long position ) {
+		return (int)position;
+	}
+	
+	/** Serializes a job into a record payload. */
+	public static byte[] serialize( QueueJob job ) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream( bytes );
+		
+		job.writeTo( out );
+		out.flush();
+		
+		return bytes.toByteArray();
+	}
+}
@@ -0,0 +1,353 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/** The queue of jobs waiting for the indexer, bounded both in number of jobs and in
+ * (estimated) bytes.
+ * 
+ * When the queue is full, producers either wait for room up to the configured timeout
+ * (the "block" policy) or are rejected straight away (the "reject" policy). In both cases
+ * a QueueFullException tells the producer to retry later. A single job larger than the
+ * byte limit is only accepted when the queue is empty.
+ * 
+ * Jobs are coalesced by document ID: when a job is queued for a document that already
+ * has a job waiting, the older job is superseded and only the newest one is applied.
+ * Superseded jobs stay in the deque until they reach its head, but no longer count
+ * towards the queue limits.
+ * 
+ * When a journal is set, accepted jobs are appended to it in queue order, and add() only
+ * returns once the jobs are durable. */
+class IndexQueue {
+	/** Default maximum number of queued jobs. */
+	public static final int DefaultMaxJobs = 10000;
+	
+	/** Default maximum number of queued bytes. */
+	public static final long DefaultMaxBytes = 256L * 1024 * 1024;
+	
+	/** Default time in milliseconds producers wait for room with the block policy. */
+	public static final long DefaultBlockTimeout = 5000;
+	
+	/** Policy names. */
+	public static final String BLOCK_POLICY = "block";
+	public static final String REJECT_POLICY = "reject";
+	
+	private int maxJobs = DefaultMaxJobs;
+	private long maxBytes = DefaultMaxBytes;
+	private boolean blockWhenFull = true;
+	private long blockTimeout = DefaultBlockTimeout;
+	
+	/** The queued jobs, including the superseded ones. */
+	private ArrayDeque<QueueJob> jobs = new ArrayDeque<QueueJob>();
+	
+	/** The newest queued job for each document ID. */
+	private HashMap<String, QueueJob> pending = new HashMap<String, QueueJob>();
+	
+	/** The estimated size of the jobs that haven't been superseded. */
+	private long byteSize = 0;
+	
+	/** Total number of jobs superseded by a newer job for the same document. */
+	private long coalescedJobCount = 0;
+	
+	/** The journal the jobs are written to, or null. */
+	private IndexJournal journal = null;
+	
+	private ReentrantLock lock = new ReentrantLock();
+	private Condition notEmpty = lock.newCondition();
+	private Condition notFull = lock.newCondition();
+	
+	public IndexQueue() {
+		Options options = Options.getInstance();
+		
+		maxJobs = Math.max( 1, options.getIntOption( "queuemaxjobs", DefaultMaxJobs ) );
+		maxBytes = Math.max( 1, options.getLongOption( "queuemaxbytes", DefaultMaxBytes ) );
+		blockWhenFull = !options.getOption( "queuepolicy", BLOCK_POLICY ).equalsIgnoreCase( REJECT_POLICY );
+		blockTimeout = options.getLongOption( "queuetimeout", DefaultBlockTimeout );
+	}
+	
+	/** Sets the journal the accepted jobs are written to. */
+	public void setJournal( IndexJournal journal ) {
+		this.journal = journal;
+	}
+	
+	/** Adds a job to the queue, applying the queue policy when it is full. */
+	public void add( QueueJob job ) throws EngineException, InterruptedException {
+		byte[] payload = serialize( job );
+		
+		lock.lock();
+		try
+		{
+			waitForRoom( 1, job.getByteSize() );
+			
+			append( job, payload );
+			
+			enqueue( job );
+			
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		sync( job );
+	}
+	
+	/** Adds all the jobs to the queue, applying the queue policy when they don't fit. Either
+	 * all or none of the jobs are added. */
+	public void addAll( Collection<QueueJob> newJobs ) throws EngineException, InterruptedException {
+		if( newJobs.isEmpty() )
+			return;
+		
+		long newByteSize = 0;
+		for( QueueJob job : newJobs )
+			newByteSize += job.getByteSize();
+		
+		// Serialize the jobs before taking the lock, to keep the time it is held short.
+		byte[][] payloads = new byte[ newJobs.size() ][];
+		
+		int index = 0;
+		for( QueueJob job : newJobs )
+			payloads[ index++ ] = serialize( job );
+		
+		QueueJob lastJob = null;
+		
+		lock.lock();
+		try
+		{
+			waitForRoom( newJobs.size(), newByteSize );
+			
+			index = 0;
+			for( QueueJob job : newJobs )
+			{
+				append( job, payloads[ index++ ] );
+				lastJob = job;
+			}
+			
+			for( QueueJob job : newJobs )
+				enqueue( job );
+			
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+		
+		sync( lastJob );
+	}
+	
+	/** Adds the jobs replayed from the journal, regardless of the queue limits. */
+	public void addReplayed( Collection<QueueJob> replayedJobs ) {
+		lock.lock();
+		try
+		{
+			for( QueueJob job : replayedJobs )
+				enqueue( job );
+			
+			notEmpty.signal();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/** Retrieves and removes the next job, waiting up to timeout for one to become available.
+	 * Returns null if the queue is still empty. */
+	public QueueJob poll( long timeout, TimeUnit unit ) throws InterruptedException {
+		long nanos = unit.toNanos( timeout );
+		
+		lock.lock();
+		try
+		{
+			while( pending.isEmpty() )
+			{
+				if( nanos <= 0 )
+					return null;
+				
+				nanos = notEmpty.awaitNanos( nanos );
+			}
+			
+			QueueJob job = dequeue();
+			
+			notFull.signalAll();
+			
+			return job;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/** Removes up to maxJobCount available jobs, adding them to target. Returns the number of
+	 * jobs removed. */
+	public int drainTo( Collection<QueueJob> target, int maxJobCount ) {
+		lock.lock();
+		try
+		{
+			int count = 0;
+			
+			while( count < maxJobCount && !pending.isEmpty() )
+			{
+				target.add( dequeue() );
+				++count;
+			}
+			
+			if( count > 0 )
+				notFull.signalAll();
+			
+			return count;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/** Returns the number of queued jobs, not counting superseded ones. */
+	public int size() {
+		lock.lock();
+		try
+		{
+			return pending.size();
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/** Returns the estimated number of queued bytes. */
+	public long getByteSize() {
+		lock.lock();
+		try
+		{
+			return byteSize;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/** Returns the total number of jobs that were superseded by a newer job for the same
+	 * document before they were applied. */
+	public long getCoalescedJobCount() {
+		lock.lock();
+		try
+		{
+			return coalescedJobCount;
+		}
+		finally
+		{
+			lock.unlock();
+		}
+	}
+	
+	/** Adds a job at the tail of the deque, superseding any queued job for the same
+	 * document. Must be called with the lock held. */
+	private void enqueue( QueueJob job ) {
+		QueueJob previous = pending.put( job.getLuceneID(), job );
+		if( previous != null )
+		{
+			byteSize -= previous.getByteSize();
+			previous.supersede();
+			++coalescedJobCount;
+		}
+		
+		jobs.add( job );
+		byteSize += job.getByteSize();
+	}
+	
+	/** Removes and returns the first job that hasn't been superseded, discarding the
+	 * superseded ones before it. Must be called with the lock held, and with at least one
+	 * pending job. */
+	private QueueJob dequeue() {
+		QueueJob job = jobs.poll();
+		while( job.getIsSuperseded() )
+			job = jobs.poll();
+		
+		pending.remove( job.getLuceneID() );
+		byteSize -= job.getByteSize();
+		
+		return job;
+	}
+	
+	/** Serializes a job for the journal, if there is one. */
+	private byte[] serialize( QueueJob job ) throws EngineException {
+		if( journal == null )
+			return null;
+		
+		try
+		{
+			return IndexJournal.serialize( job );
+		}
+		catch( IOException e )
+		{
+			throw new EngineException( "Failed to serialize job for the journal: " + e.getMessage() );
+		}
+	}
+	
+	/** Appends a job to the journal, if there is one. Must be called with the lock held, so
+	 * that the journal order matches the queue order. */
+	private void append( QueueJob job, byte[] payload ) throws EngineException {
+		if( journal == null )
+			return;
+		
+		try
+		{
+			journal.append( job, payload );
+		}
+		catch( IOException e )
+		{
+			Log.error( "Failed to write job to the journal.", e );
+			throw new EngineException( "Failed to write job to the journal: " + e.getMessage() );
+		}
+	}
+	
+	/** Waits until the journal record of job, and those before it, are durable. */
+	private void sync( QueueJob job ) throws EngineException {
+		if( journal == null )
+			return;
+		
+		try
+		{
+			journal.sync( job.getJournalPosition() );
+		}
+		catch( IOException e )
+		{
+			Log.error( "Failed to sync the journal.", e );
+			throw new EngineException( "Failed to sync the journal: " + e.getMessage() );
+		}
+	}
+	
+	/** Waits until jobCount jobs of jobBytes bytes fit in the queue. Must be called with the
+	 * lock held. */
+	private void waitForRoom( int jobCount, long jobBytes ) throws QueueFullException, InterruptedException {
+		long nanos = blockWhenFull ? TimeUnit.MILLISECONDS.toNanos( blockTimeout ) : 0;
+		
+		while( !hasRoom( jobCount, jobBytes ) )
+		{
+			if( nanos <= 0 )
+				throw new QueueFullException( "Indexing queue is full (" + pending.size() + " jobs, " + byteSize + " bytes), retry later." );
+			
+			nanos = notFull.awaitNanos( nanos );
+		}
+	}
+	
+	/** Determines whether jobCount jobs of jobBytes bytes fit in the queue. Anything fits
+	 * in an empty queue, so that oversized content can still be indexed. */
+	private boolean hasRoom( int jobCount, long jobBytes ) {
+		if( pending.isEmpty() )
+			return true;
+		
+		return pending.size() + jobCount <= maxJobs && byteSize + jobBytes <= maxBytes;
+	}
+}
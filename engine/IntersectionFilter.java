@@ -0,0 +1,53 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.OpenBitSetDISI;
+
+/** Filter accepting the documents accepted by all of its filters. The result is rebuilt
+ * for every search, from the cached sets of the filters. */
+class IntersectionFilter extends Filter {
+	private static final long serialVersionUID = 1L;
+	
+	private Filter[] filters;
+	
+	public IntersectionFilter( Filter[] filters ) {
+		this.filters = filters;
+	}
+	
+	public DocIdSet getDocIdSet( IndexReader reader ) throws IOException {
+		OpenBitSetDISI result = null;
+		
+		for( Filter filter : filters )
+		{
+			DocIdSet set = filter.getDocIdSet( reader );
+			DocIdSetIterator iterator = ( set != null ) ? set.iterator() : null;
+			
+			// A filter accepting nothing in this segment empties the intersection.
+			if( iterator == null )
+				return DocIdSet.EMPTY_DOCIDSET;
+			
+			if( result == null )
+				result = new OpenBitSetDISI( iterator, reader.maxDoc() );
+			else
+				result.inPlaceAnd( iterator );
+		}
+		
+		return result;
+	}
+	
+	/** Intersections of the same cached filters are equal, so that the warmer records them
+	 * once. */
+	public boolean equals( Object o ) {
+		return ( o instanceof IntersectionFilter ) && Arrays.equals( filters, ( (IntersectionFilter)o ).filters );
+	}
+	
+	public int hashCode() {
+		return Arrays.hashCode( filters );
+	}
+}
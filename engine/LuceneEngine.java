@@ -5,22 +5,30 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import org.apache.lucene.analysis.Analyzer;
-import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.index.CorruptIndexException;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.index.TermFreqVector;
 import org.apache.lucene.index.TermPositionVector;
-import org.apache.lucene.queryParser.MultiFieldQueryParser;
 import org.apache.lucene.queryParser.ParseException;
-import org.apache.lucene.search.HitCollector;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Collector;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.Hits;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Scorer;
 import org.apache.lucene.search.Searcher;
 import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.search.function.CustomScoreQuery;
+import org.apache.lucene.search.function.ValueSourceQuery;
 
 /** LuceneEngine performs the actual indexing and searching of the index. */
 public class LuceneEngine {
@@ -33,6 +41,21 @@ public class LuceneEngine {
 	/** Maximum number of three-word hints to return. */
 	public static final int ThreeWordMax = 3;
 	
+	/** Maximum number of search result pages to cache. */
+	public static final int ResultCacheEntries = 1000;
+	
+	/** Maximum total number of results held by the result cache. */
+	public static final int ResultCacheMaxResults = 50000;
+	
+	/** Maximum number of prefixes held by the suggestion cache. */
+	public static final int SuggestionCacheEntries = 5000;
+	
+	/** Maximum total number of phrases held by the suggestion cache. */
+	public static final int SuggestionCacheMaxPhrases = 50000;
+	
+	/** The fields the hints are retrieved from. */
+	private static final String[] SuggestionFields = new String[] { ContentFields.BODY_FIELD };
+	
 	/** The instance of the engine. */
 	private static LuceneEngine instance = null;
 	
@@ -42,6 +65,20 @@ public class LuceneEngine {
 	/** The searcher provider instance. */
 	private SearcherProvider searcherProvider = null;
 	
+	/** The shared query parser. */
+	private QueryParserCache queryParser = new QueryParserCache( QueryParserCache.DefaultCacheSize );
+	
+	/** Cache of search result pages for the current searcher generation. */
+	private GenerationCache<String, SearchResult> resultCache =
+		new GenerationCache<String, SearchResult>( ResultCacheEntries, ResultCacheMaxResults );
+	
+	/** Cache of suggestions by normalized prefix, for the current searcher generation. */
+	private GenerationCache<String, SuggestionList> suggestionCache =
+		new GenerationCache<String, SuggestionList>( SuggestionCacheEntries, SuggestionCacheMaxPhrases );
+	
+	/** The filters restricting searches to field values, which outlive the searchers. */
+	private FilterCache filterCache = null;
+	
 	public LuceneEngine() {
 		// Debug logging, for test purposes, probably could be removed.
 		Log.info( "LuceneEngine starting..." );
@@ -52,12 +89,23 @@ public class LuceneEngine {
 		
 		initProviders();
 		
-		// Initialize the indexer instance.
-		LuceneIndexer.createInstance( indexDir );
+		filterCache = new FilterCache( Math.max( 1, Options.getInstance().getIntOption( "filtercacheentries", FilterCache.DefaultCacheSize ) ) );
+		
+		// Initialize the indexer instances, one per shard.
+		int shardCount = Math.max( 1, Options.getInstance().getIntOption( "shards", 1 ) );
+		
+		LuceneIndexer.createInstances( indexDir, shardCount );
+		
+		// Initialize the searcher provider, which searches all the shards and is refreshed
+		// whenever an indexer flushes changes.
+		searcherProvider = new SearcherProvider( LuceneIndexer.getShardDirectories( indexDir, shardCount ) );
+		
+		for( int i = 0; i < LuceneIndexer.getShardCount(); ++i )
+			LuceneIndexer.getInstance( i ).addIndexChangeListener( searcherProvider );
 		
-		// Initialize the searcher provider.
-		searcherProvider = new SearcherProvider( indexDir );
 		searcherProvider.start();
+		
+		startSuggestionRebuild();
 	}
 	
 	public synchronized static LuceneEngine getInstance() {
@@ -77,89 +125,216 @@ public class LuceneEngine {
 	
 	/** Index content passed in as the fields parameter. */
 	public void indexContent( ContentFields fields ) throws EngineException {
-		// We merely pass the request onto the LuceneIndexer instance, so that
-		// the indexing operation can be queued and processed.
-		LuceneIndexer.getInstance().indexContent( fields );
+		// We merely pass the request onto the LuceneIndexer instance of the document's
+		// shard, so that the indexing operation can be queued and processed.
+		LuceneIndexer.getInstance( fields.getLuceneID() ).indexContent( fields );
+	}
+	
+	/** Index multiple documents, which are queued as a single batch per shard. If an
+	 * exception is thrown, the documents of some shards may have been queued already. */
+	public void indexContent( List<ContentFields> fieldsList ) throws EngineException {
+		if( LuceneIndexer.getShardCount() == 1 )
+		{
+			LuceneIndexer.getInstance( 0 ).indexContent( fieldsList );
+			return;
+		}
+		
+		// Split the batch by shard.
+		HashMap<LuceneIndexer, List<ContentFields>> shardBatches = new HashMap<LuceneIndexer, List<ContentFields>>();
+		
+		for( ContentFields fields : fieldsList )
+		{
+			LuceneIndexer indexer = LuceneIndexer.getInstance( fields.getLuceneID() );
+			
+			List<ContentFields> shardBatch = shardBatches.get( indexer );
+			if( shardBatch == null )
+			{
+				shardBatch = new ArrayList<ContentFields>();
+				shardBatches.put( indexer, shardBatch );
+			}
+			
+			shardBatch.add( fields );
+		}
+		
+		for( Map.Entry<LuceneIndexer, List<ContentFields>> entry : shardBatches.entrySet() )
+			entry.getKey().indexContent( entry.getValue() );
 	}
 	
 	/** Index HTML content passed in as the fields parameter. */
 	public void indexHTMLContent( ContentFields fields ) throws EngineException {
-		// First strip the HTML tags from the body of the document, then pass
-		// it onto the regular index method.
-		fields.convertHTMLToText();
+		// Flag the body of the document as HTML, so that the indexer strips the tags,
+		// then pass it onto the regular index method.
+		fields.setIsHTML( true );
 		
 		indexContent( fields );
 	}
 	
+	/** Returns the number of jobs waiting in the indexing queues. */
+	public int getIndexQueueSize() {
+		int queueSize = 0;
+		
+		for( int i = 0; i < LuceneIndexer.getShardCount(); ++i )
+			queueSize += LuceneIndexer.getInstance( i ).getQueueSize();
+		
+		return queueSize;
+	}
+	
+	/** Returns the estimated number of bytes waiting in the indexing queues. */
+	public long getIndexQueueByteSize() {
+		long queueByteSize = 0;
+		
+		for( int i = 0; i < LuceneIndexer.getShardCount(); ++i )
+			queueByteSize += LuceneIndexer.getInstance( i ).getQueueByteSize();
+		
+		return queueByteSize;
+	}
+	
 	/** Deletes a specified content ID from the index. */
 	public void deleteContent( String appID, String contentID ) throws EngineException  {
-		LuceneIndexer.getInstance().deleteContent( appID, contentID ); 
+		LuceneIndexer.getInstance( ContentFields.generateLuceneID( appID, contentID ) ).deleteContent( appID, contentID ); 
+	}
+	
+	/** Requests a full optimize of the index. Segments are merged in the background as
+	 * the index changes, so this is only needed as an occasional maintenance operation. */
+	public void optimizeIndex() throws EngineException {
+		for( int i = 0; i < LuceneIndexer.getShardCount(); ++i )
+			LuceneIndexer.getInstance( i ).requestOptimize();
 	}
 	
 	/** Perform a search on the index, returning the results found. */
 	public SearchResult search( String queryString, int startIndex, int resultCount )
 			throws EngineException {
+		return search( queryString, startIndex, resultCount, null );
+	}
+	
+	/** Perform a search on the index with the specified options, returning the results
+	 * found. options may be null. The field values and the date range the options restrict
+	 * the results to are applied as filters, which don't affect the scores. */
+	public SearchResult search( String queryString, int startIndex, int resultCount, SearchOptions options )
+			throws EngineException {
+		SearcherReference reference = null;
+		
+		if( options == null )
+			options = new SearchOptions();
+		
 		try
 		{
-			// Retrieve the searcher instance.
-			Searcher searcher = searcherProvider.getSearcher();
+			// The generation has to be retrieved before the searcher, so that results
+			// computed by a newer searcher are never cached for an older generation.
+			long generation = searcherProvider.getGeneration();
+			String cacheKey = queryString + "\n" + startIndex + "\n" + resultCount + "\n" + options.getCacheKey();
+			
+			// Requests for all the hits are unbounded, so they are never cached.
+			if( resultCount >= 0 )
+			{
+				SearchResult cached = resultCache.get( cacheKey, generation );
+				if( cached != null )
+				{
+					SearchResult result = new SearchResult( cached.getItems(), cached.getHitCount() );
+					result.setFacets( cached.getFacets() );
+					
+					return result;
+				}
+			}
+			
+			// Acquire the searcher instance, which is released once the results are built.
+			reference = searcherProvider.acquire();
+			Searcher searcher = reference.getSearcher();
 			
-			// Create the analyzer and parser.
-		    Analyzer analyzer = new StandardAnalyzer();
-		    MultiFieldQueryParser parser = new MultiFieldQueryParser( ContentFields.queryFields, analyzer );
 		    Query queryInst;
 		    Result[] results;
 		    int totalHitCount;
 		    
 		    // Parse the string query. 
-		    queryInst = parser.parse( queryString );
+		    queryInst = queryParser.parse( ContentFields.queryFields, queryString );
+		    
+		    // Record the query, so that it can be used to warm up the next searcher.
+		    searcherProvider.getWarmer().recordQuery( queryInst );
+		    
+		    // The filter is recorded as well, so that its sets are built for the new segments
+		    // before the next searcher is published.
+		    Filter filter = filterCache.getFilter( options.getFilterTerms() );
+		    if( filter != null )
+		    	searcherProvider.getWarmer().recordFilter( filter );
+		    
+		    // The date range is matched on the numeric publication date.
+		    Filter dateFilter = options.getDateFilter();
+		    if( dateFilter != null )
+		    	filter = ( filter != null ) ? new IntersectionFilter( new Filter[] { filter, dateFilter } ) : dateFilter;
+		    
+		    // Multiply the scores by the recency boost. The reference time is rounded to the
+		    // minute, so that repeated searches build equal queries.
+		    if( options.getRecencyHalfLife() > 0 )
+		    {
+		    	long now = System.currentTimeMillis() / 60000 * 60;
+		    	
+		    	CustomScoreQuery boostedQuery = new CustomScoreQuery( queryInst, new ValueSourceQuery(
+		    		new RecencyValueSource( ContentFields.PUBDATETIME_FIELD, now, options.getRecencyHalfLife() * 24L * 60 * 60 ) ) );
+		    	boostedQuery.setStrict( true );
+		    	
+		    	queryInst = boostedQuery;
+		    }
+		    
+		    // ID-only results are built from the ID column instead of the stored documents.
+		    IDColumnCache idColumn = null;
+		    if( options.isIDOnly() )
+		    {
+		    	idColumn = reference.getIDColumn();
+		    	searcherProvider.getWarmer().recordIDColumnUse();
+		    }
+		    
+		    // The facet values are counted by the collector of the search.
+		    String[] facetFields = options.getFacetFields();
+		    FacetCounter facets = null;
+		    if( facetFields != null )
+		    {
+		    	facets = new FacetCounter( facetFields );
+		    	searcherProvider.getWarmer().recordFacetFields( facetFields );
+		    }
 		    
 		    // Perform the actual search.
 		    if(resultCount >= 0)
 		    {
-			    Hits hits = searcher.search( queryInst );
-			    if( resultCount == 0 )
-			    	resultCount = hits.length();
-			    
-			    int hitCount = Math.min( resultCount, hits.length() - startIndex );
-			    
-			    totalHitCount = hits.length();
-			    
-			    results = new Result[ hitCount ];
-			    
-			    // Now loop through the desired result range, creating the SearchResult set.
-			    for( int i = 0; (i < resultCount) && ((i + startIndex) < hits.length()); ++i )
-			    	results[ i ] = new Result( hits.doc( i + startIndex ), hits.score( i + startIndex ) );
+		    	SearchResult page = searchPage( searcher, queryInst, filter, facets, startIndex, resultCount, options.getFieldSelector(), idColumn );
+		    	
+		    	results = page.getItems();
+		    	totalHitCount = page.getHitCount();
 		    }
 		    else
 		    {
-		    	ArrayList<Integer> docIDList = new ArrayList<Integer>( 1000 );
-		    	ArrayList<Float> scoreList = new ArrayList<Float>( 1000 );
-		    	MaxScoreHitCollector collector = new MaxScoreHitCollector( docIDList, scoreList );
+		    	MaxScoreHitCollector collector = collectAllHits( searcher, queryInst, filter, facets );
 		    	
-			    searcher.search( queryInst, collector );
-			    
-			    // Process the results, retrieving the content ID for each item.
-			    totalHitCount = docIDList.size();
-			    
-			    results = new Result[ docIDList.size() ];
-			    
-			    int index = 0;
-			    float scoreNorm = 1.0f;
-			    float maxScore = collector.getMaxScore();
-			    
-			    if( totalHitCount > 0 && maxScore > 1.0f )
-			        scoreNorm = 1.0f / maxScore;
-			    
-			    for( Integer i : docIDList )
-			    {
-			    	results[ index ] = new Result( searcher.doc( i ), scoreList.get( index ) * scoreNorm );
-			    	++index;
-			    }
+		    	totalHitCount = collector.getHitCount();
+		    	
+		    	results = new Result[ totalHitCount ];
+		    	
+		    	int[] docs = collector.getDocs();
+		    	float[] scores = collector.getScores();
+		    	float scoreNorm = collector.getScoreNorm();
+		    	ResultFieldSelector selector = options.getFieldSelector();
+		    	
+		    	for( int i = 0; i < totalHitCount; ++i )
+		    		results[ i ] = createResult( searcher, docs[ i ], scores[ i ] * scoreNorm, selector, idColumn );
+		    }
+		    	
+		    FacetCount[] facetCounts = ( facets != null ) ? facets.getFacetCounts() : null;
+		    
+		    // Cache the page, returning a separate instance since the caller may modify it.
+		    if( resultCount >= 0 )
+		    {
+		    	SearchResult page = new SearchResult( results, totalHitCount );
+		    	page.setFacets( facetCounts );
+		    	
+		    	int weight = results.length + 1 + ( ( facetCounts != null ) ? facetCounts.length : 0 );
+		    	
+		    	resultCache.put( cacheKey, page, weight, reference.getGeneration() );
 		    }
 		    	
 		    // Now return the result set.
-		    return new SearchResult( results, totalHitCount );
+		    SearchResult result = new SearchResult( results, totalHitCount );
+		    result.setFacets( facetCounts );
+		    
+		    return result;
 		}
 		catch( Exception e )
 		{
@@ -168,29 +343,64 @@ public class LuceneEngine {
 			
 			throw new EngineException( e.toString() );
 		}
+		finally
+		{
+			if( reference != null )
+				searcherProvider.release( reference );
+		}
 	}
 	
-	/** Perform a search on the index, returning the results found. */
+	/** Returns the number of searches answered by the result cache. */
+	public long getResultCacheHitCount() {
+		return resultCache.getHitCount();
+	}
+	
+	/** Returns the number of searches that were not found in the result cache. */
+	public long getResultCacheMissCount() {
+		return resultCache.getMissCount();
+	}
+	
+	/** Returns the number of documents matching the query. Whether disjunctions of terms
+	 * may be answered with an upper bound is determined by the "guesshitcountupperbound"
+	 * option. */
 	public int guessHitCount( String queryString ) throws EngineException { 
+		return guessHitCount( queryString, Options.getInstance().getOption( "guesshitcountupperbound", "false" ).equalsIgnoreCase( "true" ) );
+	}
+	
+	/** Returns the number of documents matching the query, without scoring them.
+	 * 
+	 * A query on a single term is answered by its document frequency when the index has
+	 * no deletions. When allowUpperBound is set, single terms and disjunctions of terms are
+	 * always answered from the document frequencies, so the result may be larger than the
+	 * actual hit count. */
+	public int guessHitCount( String queryString, boolean allowUpperBound ) throws EngineException { 
+		SearcherReference reference = null;
+		
 		try
 		{
-			// Retrieve the searcher instance.
-			Searcher searcher = searcherProvider.getSearcher();
+			// Acquire the searcher instance.
+			reference = searcherProvider.acquire();
+			Searcher searcher = reference.getSearcher();
+			IndexReader reader = reference.getReader();
 			
-			// Create the analyzer and parser.
-		    Analyzer analyzer = new StandardAnalyzer();
-		    MultiFieldQueryParser parser = new MultiFieldQueryParser( ContentFields.queryFields, analyzer );
 		    Query queryInst;
-		    Hits hits;
 		    
 		    // Parse the string query. 
-		    queryInst = parser.parse( queryString );
+		    queryInst = queryParser.parse( ContentFields.queryFields, queryString );
 		    
-		    // Perform the actual search.
-		    hits = searcher.search( queryInst );
+		    // Deleted documents are still counted by docFreq until their segment is merged.
+		    if( queryInst instanceof TermQuery && ( allowUpperBound || !reader.hasDeletions() ) )
+		    	return reader.docFreq( ( (TermQuery)queryInst ).getTerm() );
+		    
+		    if( allowUpperBound )
+		    {
+		    	long docFreqSum = sumDocFreqs( reader, queryInst );
+		    	if( docFreqSum >= 0 )
+		    		return (int)Math.min( docFreqSum, reader.numDocs() );
+		    }
 		    
-		    // Now return the hit count.
-		    return hits.length();
+		    // Count the hits without scoring them.
+		    return countHits( searcher, queryInst, null, null );
 		}
 		catch( Exception e )
 		{
@@ -199,13 +409,18 @@ public class LuceneEngine {
 			
 			throw new EngineException( e.toString() );
 		}
+		finally
+		{
+			if( reference != null )
+				searcherProvider.release( reference );
+		}
 	}
 	
 	/** Performs a search and returns the matching terms. */
 	public String[] retrieveMatchingTerms( String queryString ) throws EngineException {
 		try
 		{
-			ArrayList<String> results = retrieveRelatedSearches( queryString );
+			ArrayList<String> results = retrieveCachedRelatedSearches( queryString );
 		    
 		    String[] resultArray = new String[ results.size() ];
 		    
@@ -223,6 +438,191 @@ public class LuceneEngine {
 	private void initProviders() {
 	}
 	
+	/** Rebuilds the suggestion index from the current index in the background, then keeps
+	 * publishing the changes made by the indexers to the lookups. Until it is ready,
+	 * suggestions are computed from the term vectors of the matching documents. */
+	private void startSuggestionRebuild() {
+		Thread rebuildThread = new Thread( "SuggestionIndex-refresh" ) {
+			public void run() {
+				try
+				{
+					SearcherReference reference = searcherProvider.acquire();
+					
+					try
+					{
+						LuceneIndexer.getSuggestionIndex().rebuild( reference.getReader() );
+					}
+					finally
+					{
+						searcherProvider.release( reference );
+					}
+				}
+				catch( Exception e )
+				{
+					Log.error( "Failed to rebuild the suggestion index.", e );
+				}
+				
+				// Then publish the phrases changed by the indexers at regular intervals.
+				long refreshInterval = Math.max( 10, Options.getInstance().getLongOption( "suggestionrefreshinterval",
+					SuggestionIndex.DefaultRefreshInterval ) );
+				
+				try
+				{
+					while( true )
+					{
+						Thread.sleep( refreshInterval );
+						
+						try
+						{
+							LuceneIndexer.getSuggestionIndex().refresh();
+						}
+						catch( RuntimeException e )
+						{
+							Log.error( "Failed to refresh the suggestion index.", e );
+						}
+					}
+				}
+				catch( InterruptedException ie )
+				{
+					Log.info( "Suggestion index refresh thread interrupted." );
+				}
+			}
+		};
+		
+		rebuildThread.setDaemon( true );
+		rebuildThread.setPriority( Thread.MIN_PRIORITY );
+		rebuildThread.start();
+	}
+	
+	/** Performs a paged search. Only the top startIndex + resultCount hits are kept in a
+	 * bounded priority queue, while the total hit count is tracked separately, so stored
+	 * documents are loaded for the requested page only, limited to the fields accepted by
+	 * selector, or not at all when an ID column is specified. A resultCount of 0 returns
+	 * all the hits from startIndex onwards. filter may be null. When facets is specified,
+	 * it counts all the hits, and the shards are searched one after the other. */
+	private SearchResult searchPage( Searcher searcher, Query queryInst, Filter filter, FacetCounter facets, int startIndex, int resultCount,
+			ResultFieldSelector selector, IDColumnCache idColumn ) throws IOException {
+		int totalHitCount = -1;
+		
+		if( startIndex < 0 )
+			startIndex = 0;
+		
+		// Returning all the hits requires the total hit count to size the queue.
+		if( resultCount == 0 )
+		{
+			totalHitCount = countHits( searcher, queryInst, filter, null );
+			resultCount = totalHitCount;
+		}
+		
+		// The queue never needs to be larger than the number of documents in the index.
+		int queueSize = (int)Math.min( (long)startIndex + resultCount, searcher.maxDoc() );
+		
+		if( queueSize <= startIndex )
+		{
+			// The requested page is empty, so only the hit count and facets are required.
+			if( totalHitCount < 0 || facets != null )
+				totalHitCount = countHits( searcher, queryInst, filter, facets );
+			
+			return new SearchResult( new Result[ 0 ], totalHitCount );
+		}
+		
+		TopDocs topDocs;
+		
+		if( facets == null )
+		{
+			// A sharded index is searched in parallel, and the top hits of the shards merged.
+			topDocs = searcher.search( queryInst, filter, queueSize );
+		}
+		else
+		{
+			TopScoreDocCollector collector = TopScoreDocCollector.create( queueSize, false );
+			
+			searcher.search( queryInst, filter, facets.wrap( collector ) );
+			
+			topDocs = collector.topDocs();
+		}
+		
+		ScoreDoc[] scoreDocs = topDocs.scoreDocs;
+		
+		int pageLength = Math.max( 0, Math.min( resultCount, scoreDocs.length - startIndex ) );
+		
+		// Normalize the scores the same way Hits does.
+		float scoreNorm = 1.0f;
+		float maxScore = topDocs.getMaxScore();
+		
+		if( scoreDocs.length > 0 && maxScore > 1.0f )
+			scoreNorm = 1.0f / maxScore;
+		
+		Result[] results = new Result[ pageLength ];
+		
+		// Now loop through the desired result range, creating the SearchResult set.
+		for( int i = 0; i < pageLength; ++i )
+		{
+			ScoreDoc scoreDoc = scoreDocs[ startIndex + i ];
+			
+			results[ i ] = createResult( searcher, scoreDoc.doc, scoreDoc.score * scoreNorm, selector, idColumn );
+		}
+		
+		return new SearchResult( results, topDocs.totalHits );
+	}
+	
+	/** Creates the result for a hit, from the ID column if one is specified, and otherwise
+	 * from the fields of the stored document accepted by selector. */
+	private Result createResult( Searcher searcher, int doc, float score, ResultFieldSelector selector, IDColumnCache idColumn )
+			throws IOException {
+		if( idColumn != null )
+			return idColumn.createResult( doc, score );
+		
+		return new Result( searcher.doc( doc, selector ), score );
+	}
+	
+	/** Collects all the hits of the query accepted by filter, in document order, counting
+	 * them with facets. filter and facets may be null. */
+	private MaxScoreHitCollector collectAllHits( Searcher searcher, Query queryInst, Filter filter, FacetCounter facets )
+			throws IOException {
+		MaxScoreHitCollector collector = new MaxScoreHitCollector( 1000 );
+		
+		searcher.search( queryInst, filter, ( facets != null ) ? facets.wrap( collector ) : collector );
+		
+		return collector;
+	}
+	
+	/** Counts the documents that match the query and are accepted by filter without scoring
+	 * them, also counting them with facets. filter and facets may be null. */
+	private int countHits( Searcher searcher, Query queryInst, Filter filter, FacetCounter facets ) throws IOException {
+		HitCountCollector collector = new HitCountCollector();
+		
+		searcher.search( queryInst, filter, ( facets != null ) ? facets.wrap( collector ) : collector );
+		
+		return collector.getHitCount();
+	}
+	
+	/** Returns the sum of the document frequencies of the terms of a query that is a
+	 * disjunction of terms, or -1 if the query is of any other form. */
+	private long sumDocFreqs( IndexReader reader, Query queryInst ) throws IOException {
+		if( queryInst instanceof TermQuery )
+			return reader.docFreq( ( (TermQuery)queryInst ).getTerm() );
+		
+		if( !( queryInst instanceof BooleanQuery ) || ( (BooleanQuery)queryInst ).getMinimumNumberShouldMatch() > 0 )
+			return -1;
+		
+		long sum = 0;
+		
+		for( BooleanClause clause : ( (BooleanQuery)queryInst ).getClauses() )
+		{
+			if( clause.getOccur() != BooleanClause.Occur.SHOULD )
+				return -1;
+			
+			long docFreq = sumDocFreqs( reader, clause.getQuery() );
+			if( docFreq < 0 )
+				return -1;
+			
+			sum += docFreq;
+		}
+		
+		return sum;
+	}
+	
 	/** Generates a valid ContentFields instance from the content in a certain predefined
 	 * location given the content's unique ID. . */
 	private ContentFields getContentFieldsFromProvider( String contentProviderID, long contentID )
@@ -231,18 +631,86 @@ public class LuceneEngine {
 		throw new ProviderNotFoundException( "Not implemented." );
 	}
 	
+	/** Retrieves the hint list for a given input string from the suggestion cache. On a
+	 * miss, the list is derived from the cached list of a shorter prefix when that list is
+	 * known to contain all the results for the longer one, and is computed otherwise. */
+	private ArrayList<String> retrieveCachedRelatedSearches(String query)
+			throws CorruptIndexException, IOException, ParseException, EngineException {
+		String prefix = query.trim().toLowerCase();
+		
+		// Invalid queries are never cached, nor answered from a shorter prefix.
+		if( !prefix.matches( "[a-z0-9]+" ) )
+			return null;
+		
+		long generation = searcherProvider.getGeneration();
+		
+		SuggestionList cached = suggestionCache.get( prefix, generation );
+		
+		// Try the shorter prefixes, longest first.
+		for( int length = prefix.length() - 1; cached == null && length > 0; --length )
+		{
+			SuggestionList shorter = suggestionCache.get( prefix.substring( 0, length ), generation );
+			if( shorter != null )
+			{
+				cached = shorter.filter( prefix );
+				if( cached != null )
+					suggestionCache.put( prefix, cached, cached.getPhrases().size() + 1, generation );
+				
+				break;
+			}
+		}
+		
+		if( cached == null )
+		{
+			// Only lists from the suggestion index are ranked consistently enough to be
+			// filtered for longer prefixes.
+			boolean isRanked = LuceneIndexer.getSuggestionIndex().isReady();
+			
+			ArrayList<String> results = retrieveRelatedSearches( query );
+			if( results == null )
+				return null;
+			
+			cached = new SuggestionList( results, isRanked );
+			suggestionCache.put( prefix, cached, results.size() + 1, generation );
+		}
+		
+		// Return a copy, since the caller may modify it.
+		return new ArrayList<String>( cached.getPhrases() );
+	}
+	
 	/** Retrieves the hint list for a given input string.
 	 * 
 	 * For now, we're only pulling phrases from the body of the indexed
-	 * content. 
+	 * content. The phrases come from the suggestion index, or from the term
+	 * vectors of the matching documents while it is being rebuilt.
 	 * */
 	private ArrayList<String> retrieveRelatedSearches(String query)
-			throws CorruptIndexException, IOException, ParseException {
-		Searcher searcher = searcherProvider.getSearcher();
-		IndexReader reader = searcherProvider.getReader();
+			throws CorruptIndexException, IOException, ParseException, EngineException {
+		query = query.trim();
 		
-		Analyzer analyzer = new StandardAnalyzer();
-	    MultiFieldQueryParser parser = new MultiFieldQueryParser( new String[] { "body" }, analyzer );
+		// Validate the query string.
+		if( !query.matches( "[a-zA-Z0-9]+" ) )
+			return null;
+		
+		SuggestionIndex suggestions = LuceneIndexer.getSuggestionIndex();
+		if( suggestions.isReady() )
+			return suggestions.lookup( query );
+		
+		SearcherReference reference = searcherProvider.acquire();
+		
+		try
+		{
+			return retrieveRelatedSearches( reference.getSearcher(), reference.getReader(), query );
+		}
+		finally
+		{
+			searcherProvider.release( reference );
+		}
+	}
+	
+	/** Retrieves the hint list for a given input string, using the specified searcher. */
+	private ArrayList<String> retrieveRelatedSearches(Searcher searcher, IndexReader reader, String query)
+			throws CorruptIndexException, IOException, ParseException {
 	    Query queryInst;
 
 	    query = query.trim();
@@ -252,7 +720,7 @@ public class LuceneEngine {
 	    	return null;
 	    
 	    // Parse the string query. 
-	    queryInst = parser.parse( query + "*" );
+	    queryInst = queryParser.parse( LuceneEngine.SuggestionFields, query + "*" );
 	    
 	    // Rewrite the query into a basic form.
 	    queryInst = queryInst.rewrite( reader );
@@ -383,6 +851,73 @@ public class LuceneEngine {
 	}
 }
 
+/** Cached list of suggestions for a prefix. */
+class SuggestionList
+{
+	private static final int[] MaxPhrases =
+		new int[] { LuceneEngine.OneWordMax, LuceneEngine.TwoWordMax, LuceneEngine.ThreeWordMax };
+	
+	private ArrayList<String> phrases;
+	private boolean isRanked;
+	
+	/** Creates a list of suggestions. isRanked indicates that the phrases are the most
+	 * frequent ones for each number of words, so the list can be filtered. */
+	public SuggestionList( ArrayList<String> phrases, boolean isRanked ) {
+		this.phrases = phrases;
+		this.isRanked = isRanked;
+	}
+	
+	public ArrayList<String> getPhrases() {
+		return phrases;
+	}
+	
+	/** Returns the suggestions for a longer prefix, or null if they can't be derived from
+	 * this list. For each number of words, the filtered phrases are complete when this
+	 * list wasn't truncated, or when enough of its phrases match, since any better phrase
+	 * for the longer prefix would have been in this list as well. */
+	public SuggestionList filter( String prefix ) {
+		if( !isRanked )
+			return null;
+		
+		ArrayList<String> filtered = new ArrayList<String>();
+		int[] counts = new int[ MaxPhrases.length ];
+		int[] filteredCounts = new int[ MaxPhrases.length ];
+		
+		String start = "+" + prefix;
+		
+		for( String phrase : phrases )
+		{
+			int words = Math.min( countWords( phrase ), MaxPhrases.length ) - 1;
+			
+			++counts[ words ];
+			
+			if( phrase.startsWith( start ) )
+			{
+				filtered.add( phrase );
+				++filteredCounts[ words ];
+			}
+		}
+		
+		for( int i = 0; i < MaxPhrases.length; ++i )
+		{
+			if( counts[ i ] >= MaxPhrases[ i ] && filteredCounts[ i ] < MaxPhrases[ i ] )
+				return null;
+		}
+		
+		return new SuggestionList( filtered, true );
+	}
+	
+	/** Counts the words of a phrase formatted as "+a +b". */
+	private static int countWords( String phrase ) {
+		int words = 1;
+		
+		for( int i = phrase.indexOf( " +" ); i >= 0; i = phrase.indexOf( " +", i + 2 ) )
+			++words;
+		
+		return words;
+	}
+}
+
 /** Simple structure for storing 3 strings. */
 class ThreeWordResult
 {
@@ -400,30 +935,110 @@ class ThreeWordResult
 	}
 }
 
-/** Custom HitCollector implementation to provide maxScore property. */
-class MaxScoreHitCollector extends HitCollector {
-	private ArrayList<Integer> docIDList = null;
-	private ArrayList<Float> scoreList = null;
+/** Custom Collector implementation to provide maxScore property. The hits are stored in
+ * growable primitive arrays rather than boxed lists. */
+class MaxScoreHitCollector extends Collector {
+	private int[] docs = null;
+	private float[] scores = null;
+	private int hitCount = 0;
+	
+	private Scorer scorer = null;
+	private int docBase = 0;
 
 	private float maxScore = 0.0f;
 	
-	public MaxScoreHitCollector(ArrayList<Integer> docIDList, ArrayList<Float> scoreList) {
-		this.docIDList = docIDList;
-		this.scoreList = scoreList;
+	public MaxScoreHitCollector(int initialCapacity) {
+		docs = new int[ Math.max( initialCapacity, 16 ) ];
+		scores = new float[ docs.length ];
+	}
+	
+	public void setScorer(Scorer scorer) {
+		this.scorer = scorer;
 	}
 	
-	public void collect(int doc, float score) {
+	public void collect(int doc) throws IOException {
+		float score = scorer.score();
+		
 		if(score > 0.0f)
 		{
-			docIDList.add( doc );
-			scoreList.add( score );
+			if( hitCount == docs.length )
+				grow();
+			
+			docs[ hitCount ] = docBase + doc;
+			scores[ hitCount ] = score;
+			++hitCount;
     	
 			if(score > maxScore)
 				maxScore = score;
 		}
 	}
 	
+	public void setNextReader(IndexReader reader, int docBase) {
+		this.docBase = docBase;
+	}
+	
+	public boolean acceptsDocsOutOfOrder() {
+		return false;
+	}
+	
 	public float getMaxScore() {
 		return maxScore;
 	}
+	
+	/** Returns the factor that normalizes the scores to a maximum of 1. */
+	public float getScoreNorm() {
+		if( hitCount > 0 && maxScore > 1.0f )
+			return 1.0f / maxScore;
+		
+		return 1.0f;
+	}
+	
+	public int getHitCount() {
+		return hitCount;
+	}
+	
+	/** Returns the collected document numbers. Only the first getHitCount() items are valid. */
+	public int[] getDocs() {
+		return docs;
+	}
+	
+	/** Returns the collected scores. Only the first getHitCount() items are valid. */
+	public float[] getScores() {
+		return scores;
+	}
+	
+	private void grow() {
+		int newLength = docs.length + ( docs.length >> 1 );
+		
+		int[] newDocs = new int[ newLength ];
+		System.arraycopy( docs, 0, newDocs, 0, hitCount );
+		docs = newDocs;
+		
+		float[] newScores = new float[ newLength ];
+		System.arraycopy( scores, 0, newScores, 0, hitCount );
+		scores = newScores;
+	}
+}
+
+/** Collector that only counts the matching documents, so that no scores are calculated. */
+class HitCountCollector extends Collector {
+	private int hitCount = 0;
+	
+	public void setScorer(Scorer scorer) {
+	}
+	
+	public void collect(int doc) {
+		++hitCount;
+	}
+	
+	public void setNextReader(IndexReader reader, int docBase) {
+	}
+	
+	public boolean acceptsDocsOutOfOrder() {
+		return true;
+	}
+	
+	public int getHitCount() {
+		return hitCount;
+	}
 }
\ No newline at end of file
@@ -1,21 +1,119 @@
 package com.codegear.dn.search.engine;
 
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.index.ConcurrentMergeScheduler;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.LogByteSizeMergePolicy;
 import org.apache.lucene.index.Term;
 import org.apache.lucene.store.FSDirectory;
 
+/** Thread that applies the queued index and delete jobs to the index.
+ * 
+ * Jobs are drained from the queue in batches. The documents of a batch are prepared
+ * (HTML conversion, Document construction and analysis) on a pool of worker threads,
+ * since IndexWriter accepts concurrent updates, while this thread decides when the
+ * index is flushed.
+ * 
+ * Segments are merged in the background by a ConcurrentMergeScheduler, which picks
+ * segments of similar size (LogByteSizeMergePolicy). A full optimize is only performed
+ * when it is explicitly requested with requestOptimize().
+ * 
+ * The index can be split into shards, each with its own indexer thread, writer and
+ * journal. Documents are routed to a shard by a hash of their Lucene ID, so changing the
+ * number of shards requires the content to be indexed again.
+ * 
+ * Accepted jobs are written to an IndexJournal before they are acknowledged. Jobs that
+ * weren't committed to the index before a crash or shutdown are replayed from the journal
+ * when the indexer starts. */
 public class LuceneIndexer extends Thread {
+	/** Time in milliseconds without new jobs after which the index is considered idle. */
+	public static final long IdleTimeout = 30000;
+	
+	/** Minimum time in milliseconds between flushes of the index. */
+	public static final long MinFlushInterval = 100;
+	
+	/** Default maximum number of jobs applied as a single batch. */
+	public static final int DefaultBatchSize = 500;
+	
+	/** Default number of unflushed changes after which the index is flushed. */
+	public static final int DefaultFlushDocumentCount = 5000;
+	
+	/** Default size in MB of the IndexWriter's RAM buffer. */
+	public static final int DefaultRAMBufferSize = 32;
+	
+	/** Default number of segments of similar size that are merged together. */
+	public static final int DefaultMergeFactor = 10;
+	
+	/** Default size in MB below which segments are considered the same size. */
+	public static final int DefaultMinMergeSize = 2;
+	
+	/** Default size in MB above which segments are no longer merged in the background. */
+	public static final int DefaultMaxMergeSize = 2048;
+	
+	/** Time in milliseconds to wait for the worker threads to finish their jobs when the
+	 * indexer shuts down. */
+	public static final long WorkerShutdownTimeout = 60000;
+	
+	/** Default priority of the merge threads, below the threads serving searches. */
+	public static final int DefaultMergeThreadPriority = Thread.NORM_PRIORITY - 1;
+	
+	/** Prefix of the shard directories within the index directory. */
+	public static final String ShardDirPrefix = "shard-";
+	
+	/** Suffix appended to the index directory for the default journal directory. */
+	public static final String JournalDirSuffix = "-journal";
+	
 	private String indexDir = null;
 	
+	/** Maximum time in milliseconds that a change can stay unflushed. */
+	private long flushInterval = IdleTimeout;
+	
+	/** Maximum number of jobs applied as a single batch. */
+	private int batchSize = DefaultBatchSize;
+	
+	/** Number of unflushed changes after which the index is flushed. */
+	private int flushDocumentCount = DefaultFlushDocumentCount;
+	
+	/** The worker threads that prepare and add the documents of a batch. */
+	private ExecutorService workers = null;
+	
+	/** Number of documents per second applied by the last batch. */
+	private volatile double lastBatchDocsPerSecond = 0;
+	
+	/** Total number of index and delete jobs applied. */
+	private volatile long appliedJobCount = 0;
+	
+	/** The listeners notified when changes have been flushed to the index. */
+	private List<IndexChangeListener> listeners = new CopyOnWriteArrayList<IndexChangeListener>();
+	
 	/** Queue that contains the documents to be indexed. */
-	private BlockingQueue<QueueJob> queue = new LinkedBlockingQueue<QueueJob>();
+	private IndexQueue queue = new IndexQueue();
+	
+	/** The journal of the accepted jobs, or null if journaling is disabled. */
+	private IndexJournal journal = null;
+	
+	/** Journal position of the last job applied to the index. */
+	private long appliedJournalPosition = -1;
+	
+	/** The phrases of the indexed bodies, used for suggestions, shared by the shards. */
+	private SuggestionIndex suggestions = null;
 	
 	/** Internal IndexWriter instance. */
 	private IndexWriter writer = null;
@@ -23,16 +121,45 @@ public class LuceneIndexer extends Thread {
 	/** Atomic variable that indicates whether the index is being optimized. */
 	private AtomicBoolean isOptimizing = new AtomicBoolean();
 	
-	/** Global instance of the indexer. */
-	private static LuceneIndexer instance = null;
+	/** Global indexer instances, one per shard. */
+	private static LuceneIndexer[] instances = new LuceneIndexer[ 0 ];
 	
-	/** Constructs an indexer instance for the specified index directory location. */
-	protected LuceneIndexer( String directory ) {
-		super();
+	/** Constructs an indexer thread with the specified name for the specified index
+	 * directory location, which keeps the suggestion index up to date with its documents.
+	 * The worker threads are named after the indexer thread. */
+	protected LuceneIndexer( String name, String directory, SuggestionIndex suggestions, int shardCount ) {
+		super( name );
 		
 		System.out.println( "Creating LuceneIndexer..." );
 		
 		indexDir = directory;
+		this.suggestions = suggestions;
+		
+		// Changes must be flushed early enough for the searcher refresh to make them
+		// visible within the maximum staleness.
+		Options options = Options.getInstance();
+		long maxStaleness = options.getLongOption( "maxstaleness", SearcherProvider.DefaultMaxStaleness );
+		long minRefreshInterval = options.getLongOption( "minrefreshinterval", SearcherProvider.DefaultMinRefreshInterval );
+		
+		flushInterval = Math.min( IdleTimeout, Math.max( MinFlushInterval, maxStaleness - minRefreshInterval ) );
+		
+		batchSize = Math.max( 1, options.getIntOption( "indexbatchsize", DefaultBatchSize ) );
+		flushDocumentCount = Math.max( 1, options.getIntOption( "flushdocs", DefaultFlushDocumentCount ) );
+		
+		// The processors are shared by the shards.
+		int workerCount = Math.max( 1, options.getIntOption( "indexthreads", Runtime.getRuntime().availableProcessors() / shardCount ) );
+		
+		final String threadName = name;
+		
+		workers = Executors.newFixedThreadPool( workerCount, new ThreadFactory() {
+			private AtomicInteger threadNumber = new AtomicInteger();
+			
+			public Thread newThread( Runnable r ) {
+				Thread thread = new Thread( r, threadName + "-worker-" + threadNumber.incrementAndGet() );
+				thread.setDaemon( true );
+				return thread;
+			}
+		} );
 		
 		try
 		{
@@ -49,81 +176,153 @@ public class LuceneIndexer extends Thread {
 			
 			// Start the index writer.
 			writer = new IndexWriter( indexDir, new StandardAnalyzer() );
+			writer.setRAMBufferSizeMB( options.getIntOption( "rambuffermb", DefaultRAMBufferSize ) );
+			
+			configureMerging( options );
 		}
 		catch( Exception e )
 		{
 			// Log the exception.
 			Log.error( "Failed to initialize IndexWriter.", e );
 		}
+		
+		openJournal( options, shardCount > 1 );
 	}
 	
-	public static void createInstance( String directory ) {
-		instance = new LuceneIndexer( directory );
-		instance.start();
+	/** Creates and starts the indexers of the shards of the index in indexDir. */
+	public static void createInstances( String indexDir, int shardCount ) {
+		String[] directories = getShardDirectories( indexDir, shardCount );
+		SuggestionIndex suggestions = new SuggestionIndex();
+		
+		LuceneIndexer[] newInstances = new LuceneIndexer[ directories.length ];
+		
+		for( int i = 0; i < directories.length; ++i )
+		{
+			newInstances[ i ] = new LuceneIndexer( "LuceneIndexer-" + i, directories[ i ], suggestions, directories.length );
+			newInstances[ i ].start();
+		}
+		
+		instances = newInstances;
+	}
+	
+	/** Returns the directories of the shards of the index in indexDir. A single shard is
+	 * stored directly in indexDir, so that unsharded indexes keep their layout. */
+	public static String[] getShardDirectories( String indexDir, int shardCount ) {
+		if( shardCount <= 1 )
+			return new String[] { indexDir };
+		
+		String[] directories = new String[ shardCount ];
+		
+		for( int i = 0; i < shardCount; ++i )
+			directories[ i ] = new File( indexDir, ShardDirPrefix + i ).getPath();
+		
+		return directories;
 	}
 	
 	/** Indexes the content specified by the fields parameter, deleting any prior document
-	 * with the same id. */ 
+	 * with the same id. Throws a QueueFullException if the queue has no room for it. */ 
 	public void indexContent( ContentFields fields ) throws EngineException {
+		enqueue( QueueJob.createIndexJob( fields ) );
+	}
+	
+	/** Indexes multiple documents, which are queued as a single batch. Any prior documents
+	 * with the same ids are deleted. Either all or none of the documents are queued, and
+	 * they are durable in the journal when the method returns. */
+	public void indexContent( Collection<ContentFields> fieldsList ) throws EngineException {
+		ArrayList<QueueJob> jobs = new ArrayList<QueueJob>( fieldsList.size() );
+		
+		for( ContentFields fields : fieldsList )
+			jobs.add( QueueJob.createIndexJob( fields ) );
+		
 		try
 		{
-			queue.add( QueueJob.createIndexJob( fields ) );
+			queue.addAll( jobs );
 		}
-		catch( Exception e )
+		catch( InterruptedException ie )
 		{
-			// Log the exception.
-			Log.error( "Failed to add content to queue." , e );
+			throw new EngineException( "Interrupted while adding content to queue." );
 		}
 	}
 	
 	/** Deletes the specified content from the index. */
 	public void deleteContent( String appID, String contentID ) throws EngineException {
-		try
-		{
-			queue.add( QueueJob.createDeleteJob( appID, contentID ) );
-		}
-		catch( Exception e )
-		{
-			// Log the exception.
-			Log.error( "Failed to add content to queue." , e );
-		}
+		enqueue( QueueJob.createDeleteJob( appID, contentID ) );
+	}
+	
+	/** Requests a full optimize of the index, which is performed after the jobs queued
+	 * before it have been applied. The optimize merges the whole index into a single
+	 * segment, so it should only be requested as a maintenance operation. */
+	public void requestOptimize() throws EngineException {
+		enqueue( QueueJob.createOptimizeJob() );
+	}
+	
+	/** Returns the number of jobs waiting in the queue. */
+	public int getQueueSize() {
+		return queue.size();
+	}
+	
+	/** Returns the estimated number of bytes waiting in the queue. */
+	public long getQueueByteSize() {
+		return queue.getByteSize();
+	}
+	
+	/** Adds a listener that is notified whenever changes have been flushed to the index. */
+	public void addIndexChangeListener( IndexChangeListener listener ) {
+		listeners.add( listener );
 	}
 	
 	/** Executes the indexing operations. */
 	public void run() {
 		try
 		{
-			int alteredDocumentCount = 0;
+			int unflushedDocumentCount = 0;
+			long firstUnflushedTime = 0;
+			ArrayList<QueueJob> batch = new ArrayList<QueueJob>( batchSize );
 			QueueJob job = null;
 			
 			while( !interrupted() )
 			{
+				// While there are unflushed changes, only wait until they are due to be flushed.
+				long timeout = IdleTimeout;
+				if( unflushedDocumentCount > 0 )
+					timeout = Math.max( 0, firstUnflushedTime + flushInterval - System.currentTimeMillis() );
+				
 				// Retrieve the the QueueJob item from the collection.
-				job = queue.poll( 30, TimeUnit.SECONDS );
+				job = queue.poll( timeout, TimeUnit.MILLISECONDS );
+				
+				long now = System.currentTimeMillis();
+				
 				if( job != null )
 				{
-					if( job.getJobType() == QueueJob.INDEX_JOB )
-						addContentToIndex( job.getFields() );
-					else if( job.getJobType() == QueueJob.DELETE_JOB )
-						deleteContentFromIndex( job.getAppID(), job.getContentID() );
+					// Drain the jobs that are already queued, and apply them as one batch.
+					batch.add( job );
+					queue.drainTo( batch, batchSize - 1 );
 					
-					++alteredDocumentCount;
-				}
-				
-				if( job == null )					
-				{
-					// If no new item is added for 30 seconds and a substantial number of 
-					// Documents have been added, optimize the index.
-					if( alteredDocumentCount > 400 )
+					applyBatch( batch );
+					
+					if( unflushedDocumentCount == 0 )
+						firstUnflushedTime = now;
+					
+					unflushedDocumentCount += batch.size();
+					
+					if( containsJob( batch, QueueJob.OPTIMIZE_JOB ) )
 					{
+						// The optimize flushes the index as well.
 						optimizeIndex();
-						alteredDocumentCount = 0;
-					}
-					else if( alteredDocumentCount > 0 )
-					{
-						// Otherwise, flush the index to disk.
-						flushIndex();
+						unflushedDocumentCount = 0;
 					}
+					
+					batch.clear();
+				}
+				
+				// Flush the index when the queue is empty, when enough changes have been
+				// made, or when the oldest unflushed change has waited for the flush interval,
+				// so readers will see the changes.
+				if( unflushedDocumentCount > 0 &&
+					( job == null || unflushedDocumentCount >= flushDocumentCount || now - firstUnflushedTime >= flushInterval ) )
+				{
+					flushIndex();
+					unflushedDocumentCount = 0;
 				}
 			}
 		}
@@ -134,28 +333,74 @@ public class LuceneIndexer extends Thread {
 		
 		Log.info( "Indexer thread shutting down." );
 		
-		// When the thread exits, close the writer.
-		closeWriter();
+		// The thread may have been interrupted while the workers were applying a batch, so
+		// they must finish before the writer is closed.
+		boolean isDrained = shutdownWorkers();
+		
+		// When the thread exits, close the writer. If some workers are still running, their
+		// jobs may not have been applied, so the journal isn't checkpointed and the jobs are
+		// replayed on the next start.
+		closeWriter( isDrained );
 	}
 	
-	/** Indicates whether the index is currently being optimized. If it is, readers must not
-	 * refresh to save disk space. */
+	/** Returns the number of documents per second applied by the last batch. */
+	public double getLastBatchDocsPerSecond() {
+		return lastBatchDocsPerSecond;
+	}
+	
+	/** Returns the total number of index and delete jobs applied to the index. */
+	public long getAppliedJobCount() {
+		return appliedJobCount;
+	}
+	
+	/** Returns the total number of queued jobs that were skipped because a newer job for
+	 * the same document was queued. */
+	public long getCoalescedJobCount() {
+		return queue.getCoalescedJobCount();
+	}
+	
+	/** Indicates whether the index is currently being optimized, following an explicit
+	 * request. If it is, readers must not refresh to save disk space. Background merges
+	 * don't affect refreshes. */
 	public boolean getIsOptimizing() {
 		return isOptimizing.get();
 	}
 	
-	/** Returns the global indexer instance. */
-	public static LuceneIndexer getInstance() {
-		return instance;
+	/** Returns the suggestion index, which the indexers keep up to date with the indexed
+	 * documents. */
+	static SuggestionIndex getSuggestionIndex() {
+		return ( instances.length > 0 ) ? instances[ 0 ].suggestions : null;
+	}
+	
+	/** Returns the number of shards, or 0 if the indexers haven't been created. */
+	public static int getShardCount() {
+		return instances.length;
 	}
 	
-	/** Closes the writer and flushes all changes to disk. */
-	public void closeWriter() {
+	/** Returns the indexer of the specified shard. */
+	public static LuceneIndexer getInstance( int shard ) {
+		return instances[ shard ];
+	}
+	
+	/** Returns the indexer of the shard containing the document with the specified
+	 * Lucene ID. */
+	public static LuceneIndexer getInstance( String luceneID ) {
+		// String.hashCode() is specified, so a document always maps to the same shard.
+		return instances[ ( luceneID.hashCode() & 0x7FFFFFFF ) % instances.length ];
+	}
+	
+	/** Closes the writer, recording the committed changes in the journal when checkpoint is
+	 * set. Called by the indexer thread once it has been interrupted and its workers have
+	 * finished, so no update can still be running. */
+	private void closeWriter( boolean checkpoint ) {
 		Log.info( "Closing writer..." );
 		
 		try
 		{
 			writer.close();
+			
+			if( checkpoint )
+				checkpointJournal();
 		}
 		catch( Exception e )
 		{
@@ -164,9 +409,220 @@ public class LuceneIndexer extends Thread {
 		}
 		
 		writer = null;
+		
+		if( journal != null )
+			journal.close();
+	}
+	
+	/** Sets up the background merging of segments.
+	 * 
+	 * Lucene doesn't throttle the IO of merges, so the merge threads run below the normal
+	 * priority, and segments larger than the maximum merge size are left alone, so that
+	 * routine merges never rewrite the bulk of the index. */
+	private void configureMerging( Options options ) throws IOException {
+		ConcurrentMergeScheduler scheduler = new ConcurrentMergeScheduler();
+		scheduler.setMaxThreadCount( Math.max( 1, options.getIntOption( "mergethreads",
+				Math.max( 1, Math.min( 3, Runtime.getRuntime().availableProcessors() / 2 ) ) ) ) );
+		scheduler.setMergeThreadPriority( Math.max( Thread.MIN_PRIORITY, Math.min( Thread.MAX_PRIORITY,
+				options.getIntOption( "mergethreadpriority", DefaultMergeThreadPriority ) ) ) );
+		
+		LogByteSizeMergePolicy policy = new LogByteSizeMergePolicy( writer );
+		policy.setMergeFactor( Math.max( 2, options.getIntOption( "mergefactor", DefaultMergeFactor ) ) );
+		policy.setMinMergeMB( options.getIntOption( "minmergemb", DefaultMinMergeSize ) );
+		policy.setMaxMergeMB( options.getIntOption( "maxmergemb", DefaultMaxMergeSize ) );
+		
+		writer.setMergeScheduler( scheduler );
+		writer.setMergePolicy( policy );
+	}
+	
+	/** Opens the journal, and queues the jobs that weren't flushed to the index before the
+	 * indexer was last stopped. Journaling is disabled if the journal directory option is
+	 * empty. The shards of a configured journal directory each use a subdirectory. */
+	private void openJournal( Options options, boolean isShard ) {
+		String journalDir = options.getOption( "journaldir", null );
+		if( journalDir == null )
+			journalDir = indexDir + JournalDirSuffix;
+		else if( journalDir.length() == 0 )
+		{
+			Log.info( "Index journal disabled." );
+			return;
+		}
+		else if( isShard )
+			journalDir = new File( journalDir, new File( indexDir ).getName() ).getPath();
+		
+		int segmentSize = Math.max( 1, options.getIntOption( "journalsegmentmb", IndexJournal.DefaultSegmentSize ) );
+		
+		try
+		{
+			journal = new IndexJournal( new File( journalDir ), segmentSize * 1024 * 1024 );
+			
+			List<QueueJob> replayedJobs = journal.replay();
+			if( !replayedJobs.isEmpty() )
+			{
+				Log.info( "Replaying " + replayedJobs.size() + " jobs from the index journal." );
+				queue.addReplayed( replayedJobs );
+			}
+			
+			queue.setJournal( journal );
+		}
+		catch( Exception e )
+		{
+			// Without the journal, indexing still works, but queued jobs don't survive a crash.
+			Log.error( "Failed to open index journal '" + journalDir + "'.", e );
+			journal = null;
+		}
+	}
+	
+	/** Stops the worker threads, waiting for the jobs they are applying. Returns false if
+	 * some workers were still running after the timeout. */
+	private boolean shutdownWorkers() {
+		workers.shutdown();
+		
+		try
+		{
+			if( workers.awaitTermination( WorkerShutdownTimeout, TimeUnit.MILLISECONDS ) )
+				return true;
+			
+			Log.error( "Indexer workers didn't finish within " + WorkerShutdownTimeout + "ms." );
+		}
+		catch( InterruptedException ie )
+		{
+			Log.error( "Interrupted while waiting for the indexer workers." );
+		}
+		
+		workers.shutdownNow();
+		
+		return false;
+	}
+	
+	/** Records in the journal that the applied jobs have been flushed to the index. */
+	private void checkpointJournal() {
+		if( journal == null || appliedJournalPosition < 0 )
+			return;
+		
+		try
+		{
+			journal.checkpoint( appliedJournalPosition );
+		}
+		catch( IOException e )
+		{
+			// The jobs will be replayed on the next start, which is harmless.
+			Log.error( "Failed to checkpoint index journal.", e );
+		}
 	}
 	
-	/** Adds the specified document to the index. */
+	/** Applies a batch of jobs to the index.
+	 * 
+	 * The jobs are grouped by document ID. The groups containing index jobs are applied
+	 * in parallel by the worker threads, each group in queue order, so that jobs for the
+	 * same document still take effect in order. Groups containing only deletes are applied
+	 * as a single delete call. The method returns once the whole batch has been applied. */
+	private void applyBatch( List<QueueJob> batch ) throws InterruptedException {
+		long startTime = System.nanoTime();
+		
+		// Group the jobs by document ID, keeping the queue order within each group.
+		LinkedHashMap<String, List<QueueJob>> groups = new LinkedHashMap<String, List<QueueJob>>();
+		
+		for( QueueJob job : batch )
+		{
+			// Optimize jobs are performed by the indexer thread once the batch is applied.
+			if( job.getJobType() == QueueJob.OPTIMIZE_JOB )
+				continue;
+			
+			List<QueueJob> group = groups.get( job.getLuceneID() );
+			if( group == null )
+			{
+				group = new ArrayList<QueueJob>( 1 );
+				groups.put( job.getLuceneID(), group );
+			}
+			
+			group.add( job );
+		}
+		
+		ArrayList<Term> deleteTerms = new ArrayList<Term>();
+		ArrayList<Future<?>> futures = new ArrayList<Future<?>>( groups.size() );
+		
+		for( final List<QueueJob> group : groups.values() )
+		{
+			if( containsIndexJob( group ) )
+			{
+				futures.add( workers.submit( new Runnable() {
+					public void run() {
+						applyJobs( group );
+					}
+				} ) );
+			}
+			else
+			{
+				deleteTerms.add( new Term( ContentFields.ID_FIELD, group.get( 0 ).getLuceneID() ) );
+			}
+		}
+		
+		deleteContentFromIndex( deleteTerms );
+		
+		// Wait for the workers to complete the batch.
+		for( Future<?> future : futures )
+		{
+			try
+			{
+				future.get();
+			}
+			catch( ExecutionException e )
+			{
+				Log.error( "Failed to apply index job.", e.getCause() );
+			}
+		}
+		
+		long elapsed = System.nanoTime() - startTime;
+		
+		// The journal and the queue have the same order, so all jobs up to the last one
+		// in the batch have now been applied.
+		for( QueueJob job : batch )
+			appliedJournalPosition = Math.max( appliedJournalPosition, job.getJournalPosition() );
+		
+		lastBatchDocsPerSecond = batch.size() * 1000000000.0 / Math.max( elapsed, 1 );
+		appliedJobCount += batch.size();
+		
+		if( batch.size() > 1 )
+			Log.debug( "Applied " + batch.size() + " jobs in " + ( elapsed / 1000000 ) + "ms (" + (long)lastBatchDocsPerSecond + " docs/sec)." );
+	}
+	
+	/** Applies the jobs for a single document ID, in order. Called by the worker threads. */
+	private void applyJobs( List<QueueJob> jobs ) {
+		ArrayList<Term> deleteTerms = new ArrayList<Term>( 1 );
+		
+		for( QueueJob job : jobs )
+		{
+			if( job.getJobType() == QueueJob.INDEX_JOB )
+			{
+				addContentToIndex( job.getFields() );
+			}
+			else if( job.getJobType() == QueueJob.DELETE_JOB )
+			{
+				deleteTerms.add( new Term( ContentFields.ID_FIELD, job.getLuceneID() ) );
+				deleteContentFromIndex( deleteTerms );
+			}
+		}
+	}
+	
+	/** Determines whether the jobs contain an index job. */
+	private static boolean containsIndexJob( List<QueueJob> jobs ) {
+		return containsJob( jobs, QueueJob.INDEX_JOB );
+	}
+	
+	/** Determines whether the jobs contain a job of the specified type. */
+	private static boolean containsJob( List<QueueJob> jobs, int jobType ) {
+		for( QueueJob job : jobs )
+		{
+			if( job.getJobType() == jobType )
+				return true;
+		}
+		
+		return false;
+	}
+	
+	/** Adds the specified document to the index, replacing any previous document with
+	 * the same ID. */
 	private void addContentToIndex( ContentFields fields ) {
 		try
 		{
@@ -177,11 +633,10 @@ public class LuceneIndexer extends Thread {
 				return;
 			}
 			
-			// First make sure there are no previous documents with this ID.
-			writer.deleteDocuments( new Term( ContentFields.ID_FIELD, fields.getLuceneID() ) );
-		
-			// Now add the content to the index.
-			writer.addDocument( fields.asDocument() );
+			// Replace any previous documents with this ID with the content.
+			writer.updateDocument( new Term( ContentFields.ID_FIELD, fields.getLuceneID() ), fields.asDocument() );
+			
+			suggestions.update( fields.getLuceneID(), suggestions.extractPhrases( fields.getBody() ) );
 		}
 		catch( Exception e )
 		{
@@ -191,29 +646,40 @@ public class LuceneIndexer extends Thread {
 		}
 	}
 	
-	/** Deletes the specified content from the index. */
-	private void deleteContentFromIndex( String appID, String contentID ) {
+	/** Deletes the content identified by the specified ID terms from the index, and
+	 * clears the list. */
+	private void deleteContentFromIndex( List<Term> deleteTerms ) {
+		if( deleteTerms.isEmpty() )
+			return;
+		
 		try
 		{
 			if( writer == null )
 			{
 				// This should never happen, but if it does, log it.
-				Log.error( "writer instance is null. Cannot delete document (" + ContentFields.generateLuceneID( appID, contentID ) + ")" );
+				Log.error( "writer instance is null. Cannot delete " + deleteTerms.size() + " documents." );
 				return;
 			}
 			
-			// Delete the documents that match the specified appID and contentID.
-			writer.deleteDocuments( new Term( ContentFields.ID_FIELD, ContentFields.generateLuceneID( appID, contentID ) ) );
+			// Delete the documents that match the specified IDs.
+			writer.deleteDocuments( deleteTerms.toArray( new Term[ deleteTerms.size() ] ) );
+			
+			for( Term term : deleteTerms )
+				suggestions.remove( term.text() );
 		}
 		catch( Exception e )
 		{
-			// If an exception is thrown, it means that this content has not been indexed.
-			// So we log the error, along with the information about this document.
-			Log.error( "deleteContentFromIndex failed for document (" + ContentFields.generateLuceneID( appID, contentID ) + ")", e );
+			// If an exception is thrown, it means that this content has not been deleted.
+			// So we log the error, along with the information about these documents.
+			Log.error( "deleteContentFromIndex failed for documents " + deleteTerms, e );
+		}
+		finally
+		{
+			deleteTerms.clear();
 		}
 	}
 	
-	/** Optimizes the index. */
+	/** Optimizes the index, merging it into a single segment. */
 	private void optimizeIndex() {
 		// First indicate that we are optimizing.
 		isOptimizing.set( true );
@@ -228,7 +694,10 @@ public class LuceneIndexer extends Thread {
 			
 			Log.info( "Optimizing index." );
 			writer.optimize();
-			writer.flush();
+			writer.commit();
+			
+			// Only jobs durably committed to the index can be dropped from the journal.
+			checkpointJournal();
 		}
 		catch( Exception e )
 		{
@@ -239,75 +708,43 @@ public class LuceneIndexer extends Thread {
 		{
 			isOptimizing.set( false );
 		}
+		
+		notifyIndexChanged();
 	}
 	
-	/** Flushes the index to disk so that readers will see the changes. */
+	/** Commits the index to disk so that readers will see the changes. The journal is only
+	 * checkpointed once the commit has been synced, so a crash never loses applied jobs. */
 	private void flushIndex() {
 		try
 		{
-			writer.flush();
+			writer.commit();
 		}
 		catch( Exception e )
 		{
 			// Log the exception.
 			Log.error( "Index flush failed.", e );
+			return;
 		}
-	}
-}
-
-/** Class that encapsulates a single job to be performed by the indexer. */
-class QueueJob {
-	/** Index content job type. */
-	public static final int INDEX_JOB = 0;
-	/** Delete content job type. */
-	public static final int DELETE_JOB = 1;
-	
-	private int jobType = -1;	
-	private ContentFields fields = null;
-	private String appID = null;
-	private String contentID = null;
-	
-	/** Create an indexing job instance. */
-	public static QueueJob createIndexJob( ContentFields fields ) {
-		QueueJob result = new QueueJob();
-		
-		result.jobType = QueueJob.INDEX_JOB;
-		result.fields = fields;
-		
-		return result;
-	}
-	
-	/** Create a delete content job instance. */
-	public static QueueJob createDeleteJob( String appID, String contentID ) {
-		QueueJob result = new QueueJob();
 		
-		result.jobType = QueueJob.DELETE_JOB;
-		result.appID = appID;
-		result.contentID = contentID;
-		
-		return result;
-	}
-	
-	/** Return the job type. */
-	public int getJobType() {
-		return jobType;
-	}
-	
-	/** Return the fields for the document that is to be indexed. */
-	public ContentFields getFields() {
-		return fields;
-	}
-	
-	/** Return the application ID of the content to be deleted. */
-	public String getAppID() {
-		return appID;
+		checkpointJournal();
+		notifyIndexChanged();
 	}
 	
-	/** Return the content ID of the content to be deleted. */
-	public String getContentID() {
-		return contentID;
+	/** Adds a job to the queue. */
+	private void enqueue( QueueJob job ) throws EngineException {
+		try
+		{
+			queue.add( job );
+		}
+		catch( InterruptedException ie )
+		{
+			throw new EngineException( "Interrupted while adding content to queue." );
+		}
 	}
 	
-	private QueueJob() {
+	/** Notifies the listeners that changes have been flushed to the index. */
+	private void notifyIndexChanged() {
+		for( IndexChangeListener listener : listeners )
+			listener.indexChanged();
 	}
 }
\ No newline at end of file
@@ -11,8 +11,20 @@ public class LuceneIndexerFinalizer implements ServletContextListener {
 	public void contextDestroyed(ServletContextEvent event) {
 		Log.info( "Application context being shutdown..." );
 		
-		// Close the Lucene index writer to save all changes to disk.
-		if( LuceneIndexer.getInstance() != null )
-			LuceneIndexer.getInstance().closeWriter();
+		// Stop the indexer threads, which wait for their workers and then close their writers
+		// to save all changes to disk.
+		for( int i = 0; i < LuceneIndexer.getShardCount(); ++i )
+			LuceneIndexer.getInstance( i ).interrupt();
+		
+		try
+		{
+			for( int i = 0; i < LuceneIndexer.getShardCount(); ++i )
+				LuceneIndexer.getInstance( i ).join();
+		}
+		catch( InterruptedException ie )
+		{
+			Log.error( "Interrupted while waiting for the indexer threads to close their writers." );
+			Thread.currentThread().interrupt();
+		}
 	}
 }
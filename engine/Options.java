@@ -1,6 +1,7 @@
 package com.codegear.dn.search.engine;
 
 import java.io.InputStream;
+import java.util.HashMap;
 
 import org.apache.xerces.parsers.DOMParser;
 import org.w3c.dom.Document;
@@ -15,12 +16,15 @@ public class Options {
 	
 	private String indexDirectory = null;
 	
+	/** The text of all the option elements, keyed by element name. */
+	private HashMap<String, String> values = new HashMap<String, String>();
+	
 	private Options() {
 		loadOptions();
 	}
 	
 	/** Returns a  */
-	public static Options getInstance() {
+	public static synchronized Options getInstance() {
 		if( instance == null )
 			instance = new Options();
 		
@@ -31,6 +35,37 @@ public class Options {
 		return indexDirectory;
 	}
 	
+	/** Returns the value of the named option, or defaultValue if it isn't specified. */
+	public String getOption( String name, String defaultValue ) {
+		String value = values.get( name );
+		
+		return ( value != null ) ? value : defaultValue;
+	}
+	
+	/** Returns the integer value of the named option, or defaultValue if it isn't specified
+	 * or isn't a valid number. */
+	public int getIntOption( String name, int defaultValue ) {
+		return (int)getLongOption( name, defaultValue );
+	}
+	
+	/** Returns the long value of the named option, or defaultValue if it isn't specified
+	 * or isn't a valid number. */
+	public long getLongOption( String name, long defaultValue ) {
+		String value = values.get( name );
+		if( value == null )
+			return defaultValue;
+		
+		try
+		{
+			return Long.parseLong( value );
+		}
+		catch( NumberFormatException e )
+		{
+			Log.error( "Invalid value '" + value + "' for option '" + name + "'." );
+			return defaultValue;
+		}
+	}
+	
 	private void loadOptions() {
 		InputStream optionsStream = loadResource( "/search_config.xml" );
 		
@@ -68,6 +103,8 @@ public class Options {
 				{
 					if( childNode.getNodeName().equals( "indexdir" ) )
 						indexDirectory = childNode.getTextContent();
+					
+					values.put( childNode.getNodeName(), childNode.getTextContent().trim() );
 				}
 			}
 		}
@@ -0,0 +1,99 @@
+package com.codegear.dn.search.engine;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.Query;
+
+/** Thread safe query parsing pipeline shared by all the searches.
+ * 
+ * QueryParser instances are not thread safe, so each thread keeps its own analyzer
+ * and parsers. The parsed queries are kept in a bounded LRU cache keyed by the default
+ * field set and the query string. Cached Query instances are shared between threads,
+ * so callers must never modify them. */
+public class QueryParserCache {
+	/** Default maximum number of parsed queries to keep. */
+	public static final int DefaultCacheSize = 5000;
+	
+	/** The analyzer used by the parsers of the current thread. */
+	private ThreadLocal<Analyzer> analyzer = new ThreadLocal<Analyzer>() {
+		protected Analyzer initialValue() {
+			return new StandardAnalyzer();
+		}
+	};
+	
+	/** The parsers of the current thread, keyed by field set. */
+	private ThreadLocal<HashMap<String, MultiFieldQueryParser>> parsers = new ThreadLocal<HashMap<String, MultiFieldQueryParser>>() {
+		protected HashMap<String, MultiFieldQueryParser> initialValue() {
+			return new HashMap<String, MultiFieldQueryParser>();
+		}
+	};
+	
+	/** The parsed queries, in access order. */
+	private LinkedHashMap<String, Query> queries = null;
+	
+	public QueryParserCache( final int cacheSize ) {
+		queries = new LinkedHashMap<String, Query>( 16, 0.75f, true ) {
+			protected boolean removeEldestEntry( Map.Entry<String, Query> eldest ) {
+				return size() > cacheSize;
+			}
+		};
+	}
+	
+	/** Parses queryString, searching fields when the query doesn't specify a field. */
+	public Query parse( String[] fields, String queryString ) throws ParseException {
+		String fieldsKey = getFieldsKey( fields );
+		String key = fieldsKey + "\n" + queryString;
+		Query query;
+		
+		synchronized( queries )
+		{
+			query = queries.get( key );
+		}
+		
+		if( query != null )
+			return query;
+		
+		// Parse the query outside the lock, using the parser of this thread.
+		HashMap<String, MultiFieldQueryParser> threadParsers = parsers.get();
+		MultiFieldQueryParser parser = threadParsers.get( fieldsKey );
+		
+		if( parser == null )
+		{
+			parser = new MultiFieldQueryParser( fields, analyzer.get() );
+			threadParsers.put( fieldsKey, parser );
+		}
+		
+		query = parser.parse( queryString );
+		
+		synchronized( queries )
+		{
+			queries.put( key, query );
+		}
+		
+		return query;
+	}
+	
+	/** Removes all the parsed queries from the cache. */
+	public void clear() {
+		synchronized( queries )
+		{
+			queries.clear();
+		}
+	}
+	
+	/** Generates the key that identifies a field set. */
+	private static String getFieldsKey( String[] fields ) {
+		StringBuilder key = new StringBuilder();
+		
+		for( String field : fields )
+			key.append( field ).append( ',' );
+		
+		return key.toString();
+	}
+}
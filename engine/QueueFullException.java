@@ -0,0 +1,8 @@
+package com.codegear.dn.search.engine;
+
+/** Thrown when the indexing queue is full, and the content should be submitted again later. */
+public class QueueFullException extends EngineException {
+	public QueueFullException( String message ) {
+		super( message );
+	}
+}
@@ -0,0 +1,147 @@
+package com.codegear.dn.search.engine;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/** Class that encapsulates a single job to be performed by the indexer. */
+class QueueJob {
+	/** Index content job type. */
+	public static final int INDEX_JOB = 0;
+	/** Delete content job type. */
+	public static final int DELETE_JOB = 1;
+	/** Optimize index job type. */
+	public static final int OPTIMIZE_JOB = 2;
+	
+	private int jobType = -1;	
+	private ContentFields fields = null;
+	private String appID = null;
+	private String contentID = null;
+	private String luceneID = null;
+	private long byteSize = 0;
+	private long journalPosition = -1;
+	private boolean superseded = false;
+	
+	/** Create an indexing job instance. */
+	public static QueueJob createIndexJob( ContentFields fields ) {
+		QueueJob result = new QueueJob();
+		
+		result.jobType = QueueJob.INDEX_JOB;
+		result.fields = fields;
+		result.luceneID = fields.getLuceneID();
+		result.byteSize = fields.getByteSize();
+		
+		return result;
+	}
+	
+	/** Create a delete content job instance. */
+	public static QueueJob createDeleteJob( String appID, String contentID ) {
+		QueueJob result = new QueueJob();
+		
+		result.jobType = QueueJob.DELETE_JOB;
+		result.appID = appID;
+		result.contentID = contentID;
+		result.luceneID = ContentFields.generateLuceneID( appID, contentID );
+		result.byteSize = result.luceneID.length() * 2;
+		
+		return result;
+	}
+	
+	/** Create an optimize index job instance. Optimize jobs share a single ID, so that
+	 * repeated requests are coalesced. */
+	public static QueueJob createOptimizeJob() {
+		QueueJob result = new QueueJob();
+		
+		result.jobType = QueueJob.OPTIMIZE_JOB;
+		result.luceneID = "";
+		
+		return result;
+	}
+	
+	/** Return the job type. */
+	public int getJobType() {
+		return jobType;
+	}
+	
+	/** Return the fields for the document that is to be indexed. */
+	public ContentFields getFields() {
+		return fields;
+	}
+	
+	/** Return the application ID of the content to be deleted. */
+	public String getAppID() {
+		return appID;
+	}
+	
+	/** Return the content ID of the content to be deleted. */
+	public String getContentID() {
+		return contentID;
+	}
+	
+	/** Return the estimated memory size of the job in bytes, as it was when the job
+	 * was created. */
+	public long getByteSize() {
+		return byteSize;
+	}
+	
+	/** Return the Lucene ID of the document affected by the job. */
+	public String getLuceneID() {
+		return luceneID;
+	}
+	
+	/** Indicates whether a newer job for the same document has been queued, in which case
+	 * this job must not be applied. */
+	public boolean getIsSuperseded() {
+		return superseded;
+	}
+	
+	/** Mark the job as replaced by a newer job for the same document, and release the
+	 * content it holds. */
+	public void supersede() {
+		superseded = true;
+		fields = null;
+	}
+	
+	/** Return the position in the journal after the job's record, or -1 if the job isn't
+	 * journaled. */
+	public long getJournalPosition() {
+		return journalPosition;
+	}
+	
+	/** Set the position in the journal after the job's record. */
+	public void setJournalPosition( long journalPosition ) {
+		this.journalPosition = journalPosition;
+	}
+	
+	/** Write the job to out, so that it can be read back with readFrom(). */
+	public void writeTo( DataOutput out ) throws IOException {
+		out.writeInt( jobType );
+		
+		if( jobType == QueueJob.INDEX_JOB )
+		{
+			fields.writeTo( out );
+		}
+		else if( jobType == QueueJob.DELETE_JOB )
+		{
+			ContentFields.writeString( out, appID );
+			ContentFields.writeString( out, contentID );
+		}
+	}
+	
+	/** Read a job written by writeTo(). */
+	public static QueueJob readFrom( DataInput in ) throws IOException {
+		int jobType = in.readInt();
+		
+		if( jobType == QueueJob.INDEX_JOB )
+			return createIndexJob( ContentFields.readFrom( in ) );
+		else if( jobType == QueueJob.DELETE_JOB )
+			return createDeleteJob( ContentFields.readString( in ), ContentFields.readString( in ) );
+		else if( jobType == QueueJob.OPTIMIZE_JOB )
+			return createOptimizeJob();
+		
+		throw new IOException( "Unknown job type " + jobType + "." );
+	}
+	
+	private QueueJob() {
+	}
+}
\ No newline at end of file
@@ -0,0 +1,74 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.function.DocValues;
+import org.apache.lucene.search.function.ValueSource;
+
+/** Boosts documents by the recency of their publication date.
+ * 
+ * The boost of a document published at the reference time is 2, and decreases towards 1
+ * by half of the remainder every half-life. Documents without a publication date have a
+ * boost of 1. The dates are read from the field cache, which is kept per segment, so a
+ * reopen only reads the dates of the new segments. */
+class RecencyValueSource extends ValueSource {
+	private static final long serialVersionUID = 1L;
+	
+	/** The numeric field holding the publication date in seconds. */
+	private String field;
+	
+	/** The reference time and the half-life, in seconds. */
+	private long now;
+	private long halfLife;
+	
+	public RecencyValueSource( String field, long now, long halfLife ) {
+		this.field = field;
+		this.now = now;
+		this.halfLife = halfLife;
+	}
+	
+	public DocValues getValues( IndexReader reader ) throws IOException {
+		final long[] times = FieldCache.DEFAULT.getLongs( reader, field, FieldCache.NUMERIC_UTILS_LONG_PARSER );
+		
+		return new DocValues() {
+			public float floatVal( int doc ) {
+				return getBoost( times[ doc ] );
+			}
+			
+			public String toString( int doc ) {
+				return description() + "=" + floatVal( doc );
+			}
+		};
+	}
+	
+	public String description() {
+		return "recency(" + field + ",now=" + now + ",halfLife=" + halfLife + ")";
+	}
+	
+	public boolean equals( Object o ) {
+		if( !( o instanceof RecencyValueSource ) )
+			return false;
+		
+		RecencyValueSource other = (RecencyValueSource)o;
+		
+		return field.equals( other.field ) && now == other.now && halfLife == other.halfLife;
+	}
+	
+	public int hashCode() {
+		return field.hashCode() ^ (int)( now ^ ( now >>> 32 ) ) ^ (int)( halfLife * 31 );
+	}
+	
+	/** Returns the boost of a document published at the specified time, where 0 stands for
+	 * a document without a publication date. */
+	private float getBoost( long time ) {
+		if( time == 0 )
+			return 1.0f;
+		
+		// Documents dated in the future get the maximum boost.
+		long age = Math.max( 0, now - time );
+		
+		return 1.0f + (float)Math.pow( 0.5, (double)age / halfLife );
+	}
+}
@@ -31,7 +31,8 @@ public class Result {
 		score = 0;
 	}
 	
-	/** Creates the search result from the specified Lucene document. */
+	/** Creates the search result from the specified Lucene document. Fields that weren't
+	 * loaded from the document are null. */
 	public Result( Document document, float score ) {
 		splitLuceneID( document.get( ContentFields.ID_FIELD ) );
 		
@@ -51,6 +52,21 @@ public class Result {
 		this.score = score;
 	}
 	
+	/** Creates a search result with only the IDs and the score. */
+	Result( String appID, String contentID, float score ) {
+		this.appID = appID;
+		this.contentID = contentID;
+		this.author = null;
+		this.title = null;
+		this.publicationDate = null;
+		this.languageCode = null;
+		this.product = null;
+		this.version = null;
+		this.extraData = null;
+		this.contentType = null;
+		this.score = score;
+	}
+	
 	public String getAppID() {
 		return appID;
 	}
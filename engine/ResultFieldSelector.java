@@ -0,0 +1,42 @@
+package com.codegear.dn.search.engine;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.lucene.document.FieldSelector;
+import org.apache.lucene.document.FieldSelectorResult;
+
+/** Selects the stored fields loaded to build a Result, so that the fields that aren't
+ * requested are neither read nor decompressed. The ID field is always loaded. Searches
+ * requesting no fields don't load stored documents, since their results are built from
+ * the ID column. */
+class ResultFieldSelector implements FieldSelector {
+	private static final long serialVersionUID = 1L;
+	
+	/** Selector of all the fields used by Result. */
+	public static final ResultFieldSelector AllFields = new ResultFieldSelector( null );
+	
+	/** The requested fields, or null for all of them. */
+	private HashSet<String> fields = null;
+	
+	/** Creates a selector for the specified fields, or all of them if fields is null. */
+	public ResultFieldSelector( String[] fields ) {
+		if( fields != null )
+			this.fields = new HashSet<String>( Arrays.asList( fields ) );
+	}
+	
+	public FieldSelectorResult accept( String fieldName ) {
+		if( fieldName.equals( ContentFields.ID_FIELD ) )
+			return FieldSelectorResult.LOAD;
+		
+		if( fields != null && !fields.contains( fieldName ) )
+			return FieldSelectorResult.NO_LOAD;
+		
+		// The extra data can be large, and isn't used for all applications, so it is only
+		// read when it is accessed.
+		if( fieldName.equals( ContentFields.EXTRADATA_FIELD ) )
+			return FieldSelectorResult.LAZY_LOAD;
+		
+		return FieldSelectorResult.LOAD;
+	}
+}
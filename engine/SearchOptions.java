@@ -0,0 +1,238 @@
+package com.codegear.dn.search.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.NumericRangeFilter;
+
+/** Optional settings of a search. */
+public class SearchOptions {
+	private String[] fields = null;
+	private String[] facets = null;
+	
+	// Values the results are restricted to, or null for any value.
+	private String appID = null;
+	private String category = null;
+	private String language = null;
+	private String product = null;
+	private String version = null;
+	
+	// Publication date range of the results, in the yyyymmdd[hhmmss] format, or null for
+	// an open range.
+	private String publishedAfter = null;
+	private String publishedBefore = null;
+	
+	// Half-life of the recency boost in days, or 0 for no boost.
+	private int recencyHalfLife = 0;
+	
+	public SearchOptions() {
+	}
+	
+	/** Returns the stored fields returned for each result, or null for all of them. The
+	 * appID, contentID and score are always returned. An empty array returns only those,
+	 * which are then taken from an in-memory ID column instead of the stored documents. */
+	public String[] getFields() {
+		return fields;
+	}
+	
+	public void setFields( String[] property1 ) {
+		this.fields = property1;
+	}
+	
+	/** Returns the facet fields whose values are counted over all the hits, or null for
+	 * none. Fields other than those of ContentFields.facetFields are ignored. */
+	public String[] getFacets() {
+		return facets;
+	}
+	
+	public void setFacets( String[] property1 ) {
+		this.facets = property1;
+	}
+	
+	/** Returns the appID the results are restricted to, or null for any appID. */
+	public String getAppID() {
+		return appID;
+	}
+	
+	public void setAppID( String property1 ) {
+		this.appID = property1;
+	}
+	
+	/** Returns the category the results are restricted to, or null for any category. */
+	public String getCategory() {
+		return category;
+	}
+	
+	public void setCategory( String property1 ) {
+		this.category = property1;
+	}
+	
+	/** Returns the language code the results are restricted to, or null for any language. */
+	public String getLanguage() {
+		return language;
+	}
+	
+	public void setLanguage( String property1 ) {
+		this.language = property1;
+	}
+	
+	/** Returns the product the results are restricted to, or null for any product. */
+	public String getProduct() {
+		return product;
+	}
+	
+	public void setProduct( String property1 ) {
+		this.product = property1;
+	}
+	
+	/** Returns the version the results are restricted to, or null for any version. */
+	public String getVersion() {
+		return version;
+	}
+	
+	public void setVersion( String property1 ) {
+		this.version = property1;
+	}
+	
+	/** Returns the earliest publication date of the results, in the yyyymmdd[hhmmss]
+	 * format, or null for no lower bound. The bound is inclusive. */
+	public String getPublishedAfter() {
+		return publishedAfter;
+	}
+	
+	public void setPublishedAfter( String property1 ) {
+		this.publishedAfter = property1;
+	}
+	
+	/** Returns the latest publication date of the results, in the yyyymmdd[hhmmss] format,
+	 * or null for no upper bound. The bound is inclusive, and a date without a time includes
+	 * the whole day. */
+	public String getPublishedBefore() {
+		return publishedBefore;
+	}
+	
+	public void setPublishedBefore( String property1 ) {
+		this.publishedBefore = property1;
+	}
+	
+	/** Returns the half-life in days of the recency boost, or 0 for none. The score of a
+	 * document published now is doubled, and the boost halves towards none with every
+	 * half-life of age. Documents without a publication date aren't boosted. */
+	public int getRecencyHalfLife() {
+		return recencyHalfLife;
+	}
+	
+	public void setRecencyHalfLife( int property1 ) {
+		this.recencyHalfLife = property1;
+	}
+	
+	/** Indicates whether only the IDs and scores are requested, in which case the results
+	 * are built without loading the stored documents. */
+	boolean isIDOnly() {
+		return fields != null && fields.length == 0;
+	}
+	
+	/** Returns the selector of the stored fields to load for each result. */
+	ResultFieldSelector getFieldSelector() {
+		if( fields == null )
+			return ResultFieldSelector.AllFields;
+		
+		return new ResultFieldSelector( fields );
+	}
+	
+	/** Returns the requested facet fields that can be counted, without duplicates, or null
+	 * if there are none. */
+	String[] getFacetFields() {
+		if( facets == null )
+			return null;
+		
+		List<String> requested = Arrays.asList( facets );
+		ArrayList<String> facetFields = new ArrayList<String>();
+		
+		for( String field : ContentFields.facetFields )
+		{
+			if( requested.contains( field ) )
+				facetFields.add( field );
+		}
+		
+		if( facetFields.isEmpty() )
+			return null;
+		
+		return facetFields.toArray( new String[ facetFields.size() ] );
+	}
+	
+	/** Returns the terms a document must contain to match the filters, in a fixed order.
+	 * Empty values don't restrict the results. */
+	List<Term> getFilterTerms() {
+		ArrayList<Term> terms = new ArrayList<Term>();
+		
+		addFilterTerm( terms, ContentFields.APPID_FIELD, appID );
+		addFilterTerm( terms, ContentFields.CATEGORY_FIELD, category );
+		addFilterTerm( terms, ContentFields.LANG_FIELD, language );
+		addFilterTerm( terms, ContentFields.PRODUCT_FIELD, product );
+		addFilterTerm( terms, ContentFields.VERSION_FIELD, version );
+		
+		return terms;
+	}
+	
+	/** Returns the filter of the publication date range, or null if the range is open. Dates
+	 * are matched on the numeric publication date, with a few term seeks. */
+	Filter getDateFilter() throws EngineException {
+		Long min = null;
+		Long max = null;
+		
+		if( publishedAfter != null && publishedAfter.length() > 0 )
+			min = ContentFields.parseDate( publishedAfter );
+		
+		if( publishedBefore != null && publishedBefore.length() > 0 )
+		{
+			max = ContentFields.parseDate( publishedBefore );
+			
+			// Include the whole day when no time is specified.
+			if( publishedBefore.length() == 8 )
+				max += 24 * 60 * 60 - 1;
+		}
+		
+		if( min == null && max == null )
+			return null;
+		
+		return NumericRangeFilter.newLongRange( ContentFields.PUBDATETIME_FIELD, ContentFields.PUBDATETIME_PRECISION_STEP,
+			min, max, true, true );
+	}
+	
+	/** Returns a key identifying the options, for caching search results. */
+	String getCacheKey() {
+		StringBuilder key = new StringBuilder();
+		
+		if( fields != null )
+		{
+			String[] sortedFields = fields.clone();
+			Arrays.sort( sortedFields );
+			
+			key.append( "fields=" ).append( Arrays.toString( sortedFields ) );
+		}
+		
+		String[] facetFields = getFacetFields();
+		if( facetFields != null )
+			key.append( "\nfacets=" ).append( Arrays.toString( facetFields ) );
+		
+		for( Term term : getFilterTerms() )
+			key.append( '\n' ).append( term.field() ).append( '=' ).append( term.text() );
+		
+		if( publishedAfter != null || publishedBefore != null )
+			key.append( "\npublished=" ).append( publishedAfter ).append( ".." ).append( publishedBefore );
+		
+		if( recencyHalfLife > 0 )
+			key.append( "\nrecency=" ).append( recencyHalfLife );
+		
+		return key.toString();
+	}
+	
+	private static void addFilterTerm( List<Term> terms, String field, String value ) {
+		if( value != null && value.length() > 0 )
+			terms.add( new Term( field, value ) );
+	}
+}
@@ -9,6 +9,7 @@ public class SearchResult {
 	private Result[] items = null;
 	private long requestTime = 0;
 	private int hitCount = 0;
+	private FacetCount[] facets = null;
 
 	public SearchResult() {
 		errorMessage = null;
@@ -61,4 +62,13 @@ public class SearchResult {
 	public int getHitCount() {
 		return hitCount;
 	}
+	
+	/** Returns the hit counts by facet value, or null if no facets were requested. */
+	public FacetCount[] getFacets() {
+		return facets;
+	}
+	
+	public void setFacets( FacetCount[] property1 ) {
+		this.facets = property1;
+	}
 }
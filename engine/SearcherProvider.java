@@ -1,20 +1,74 @@
 package com.codegear.dn.search.engine;
 
+import java.io.File;
+import java.io.IOException;
+
 import org.apache.lucene.index.IndexReader;
-import org.apache.lucene.search.IndexSearcher;
-import org.apache.lucene.search.Searcher;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.FSDirectory;
 
 /** Thread based class that automatically recreates the IndexSearcher
- * after predefined intervals. */
-public class SearcherProvider extends Thread {
-	/** The index directory. */
-	private String indexDir = null;
+ * when the index changes.
+ * 
+ * Refreshes are driven by the indexer, which signals indexChanged() after every flush.
+ * Refreshes are never closer together than the minimum refresh interval, and the
+ * indexer flushes often enough for changes to become visible within the maximum
+ * staleness. The index is also checked at the poll interval, to pick up changes that
+ * weren't signalled.
+ * 
+ * Searchers are handed out as reference counted SearcherReference instances. Every
+ * searcher retrieved with acquire() must be returned with release(), and a replaced
+ * searcher is only closed once all of its users have released it.
+ * 
+ * Refreshes reopen the current reader, so that segments which haven't changed (and the
+ * term indexes and norms loaded for them) are shared with the new searcher. New searchers
+ * are warmed up with recent queries (see SearcherWarmer) before they are published.
+ * 
+ * A sharded index has a reader per shard, and only the shards that changed are reopened.
+ * A shard that is being optimized keeps its current reader until the optimize is done. */
+public class SearcherProvider extends Thread implements IndexChangeListener {
+	/** Default minimum time in milliseconds between searcher refreshes. */
+	public static final long DefaultMinRefreshInterval = 1000;
+	
+	/** Default maximum time in milliseconds before a change becomes visible to searches. */
+	public static final long DefaultMaxStaleness = 10000;
+	
+	/** Time in milliseconds between index checks when no change has been signalled. */
+	public static final long PollInterval = 120000;
+	
+	/** The directories of the shards. */
+	private String[] indexDirs = null;
+	
+	/** The Directory instances the shard readers are opened from. */
+	private Directory[] directories = null;
+	
+	/** The current readers of the shards, which the provider holds a reference to. */
+	private IndexReader[] readers = null;
+	
+	/** The current searcher reference. */
+	private SearcherReference current = null;
+	
+	/** The generation of the searcher, incremented every time it is re-created. */
+	private long generation = 0;
+	
+	/** Minimum time in milliseconds between searcher refreshes. */
+	private long minRefreshInterval = DefaultMinRefreshInterval;
+	
+	/** Warms up new searchers before they are published. */
+	private SearcherWarmer warmer = new SearcherWarmer();
+	
+	/** Lock used to signal refresh requests to the provider thread. */
+	private Object refreshLock = new Object();
 	
-	/** The internal Searcher instance. */
-	private IndexSearcher searcher = null;
+	/** Indicates whether the indexer has signalled a change since the last refresh. */
+	private boolean refreshRequested = false;
 	
-	public SearcherProvider( String directory ) {
-		indexDir = directory;
+	public SearcherProvider( String[] shardDirectories ) {
+		indexDirs = shardDirectories.clone();
+		directories = new Directory[ indexDirs.length ];
+		readers = new IndexReader[ indexDirs.length ];
+		
+		minRefreshInterval = Options.getInstance().getLongOption( "minrefreshinterval", DefaultMinRefreshInterval );
 		
 		createSearcher();
 	}
@@ -23,35 +77,42 @@ public class SearcherProvider extends Thread {
 	public void run() {
 		try
 		{
+			long lastRefreshTime = 0;
+			
 			while( true )
 			{
-				// Wait 2 minutes before checking the searcher for aging.
-				Thread.sleep( 120000 );
+				// Wait for the indexer to signal a change, or for the poll interval.
+				synchronized( refreshLock )
+				{
+					if( !refreshRequested )
+						refreshLock.wait( PollInterval );
+					
+					refreshRequested = false;
+				}
+				
+				// Don't refresh more often than the minimum refresh interval.
+				long delay = lastRefreshTime + minRefreshInterval - System.currentTimeMillis();
+				if( delay > 0 )
+					Thread.sleep( delay );
 				
-				if( LuceneIndexer.getInstance() == null )
+				if( LuceneIndexer.getShardCount() == 0 )
 					return;
 				
-				// If the indexer is not optimizing, and the index is not current anymore
-				// re-create the index.
-				if( !LuceneIndexer.getInstance().getIsOptimizing() )
+				// If the index is not current anymore re-create the searcher.
+				try
 				{
-					try
-					{
-						if( searcher.getIndexReader().isCurrent() )
-							continue;
-					}
-					catch( Exception e )
-					{
-						Log.error( "Failed to determine index status.", e );
+					// Without a searcher, keep trying to create one.
+					if( getCurrent() != null && isCurrent() )
 						continue;
-					}
-
-					createSearcher();
 				}
-				else
+				catch( Exception e )
 				{
-					Log.info( "Indexer is optimizing, delaying searcher update." );
+					Log.error( "Failed to determine index status.", e );
+					continue;
 				}
+				
+				createSearcher();
+				lastRefreshTime = System.currentTimeMillis();
 			}
 		}
 		catch( InterruptedException ie )
@@ -59,55 +120,172 @@ public class SearcherProvider extends Thread {
 		}
 	}
 	
-	/** Retrieves the searcher instance. */
-	public Searcher getSearcher() {
+	/** Signals that the index has changed, so that the searcher is refreshed. */
+	public void indexChanged() {
+		synchronized( refreshLock )
+		{
+			refreshRequested = true;
+			refreshLock.notifyAll();
+		}
+	}
+	
+	/** Acquires a reference to the current searcher. The reference must be returned with
+	 * release() once the caller is done with the searcher and any documents it loads. */
+	public SearcherReference acquire() throws EngineException {
 		synchronized( this )
 		{
-			return searcher;
+			if( current == null )
+				throw new EngineException( "Searcher for index '" + indexDirs[ 0 ] + "' is not available." );
+			
+			current.incRef();
+			
+			return current;
 		}
 	}
 	
-	/** Retrieves the underlying index reader instance. */
-	public IndexReader getReader() {
+	/** Releases a reference acquired with acquire(). */
+	public void release( SearcherReference reference ) {
+		reference.decRef();
+	}
+	
+	/** Retrieves the warmer, which production searches report their queries to. */
+	public SearcherWarmer getWarmer() {
+		return warmer;
+	}
+	
+	/** Retrieves the generation of the current searcher. Results computed against a
+	 * generation remain valid until the generation changes. */
+	public long getGeneration() {
 		synchronized( this )
 		{
-			return searcher.getIndexReader();
+			return generation;
 		}
 	}
 	
+	/** Retrieves the current searcher reference, without acquiring it. Only the provider
+	 * itself may use this, since it is the only one replacing the reference. */
+	private SearcherReference getCurrent() {
+		synchronized( this )
+		{
+			return current;
+		}
+	}
+	
+	/** Determines whether the readers of all the shards are current. */
+	private boolean isCurrent() throws IOException {
+		for( IndexReader reader : readers )
+		{
+			if( !reader.isCurrent() )
+				return false;
+		}
+		
+		return true;
+	}
+	
+	/** Determines whether the indexer of a shard is optimizing, in which case readers must
+	 * not be refreshed to save disk space. The indexer signals again once it is done. */
+	private boolean isOptimizing( int shard ) {
+		return shard < LuceneIndexer.getShardCount() && LuceneIndexer.getInstance( shard ).getIsOptimizing();
+	}
+	
 	/** Creates or re-creates the searcher. */
 	private void createSearcher() {
-		// First create temporary instance.
-		IndexSearcher tempSearcher;
+		SearcherReference previous = getCurrent();
+		IndexReader[] newReaders = new IndexReader[ readers.length ];
+		boolean changed = false;
 		
 		Log.info( "Creating searcher instance..." );
 		
 		try
 		{
-			tempSearcher = new IndexSearcher( indexDir );
+			for( int i = 0; i < readers.length; ++i )
+			{
+				if( readers[ i ] == null )
+				{
+					// First open the index.
+					if( directories[ i ] == null )
+						directories[ i ] = FSDirectory.open( new File( indexDirs[ i ] ) );
+					
+					newReaders[ i ] = IndexReader.open( directories[ i ], true );
+				}
+				else if( isOptimizing( i ) )
+				{
+					Log.info( "Indexer of '" + indexDirs[ i ] + "' is optimizing, delaying its update." );
+					newReaders[ i ] = readers[ i ];
+				}
+				else
+				{
+					// Reopen the current reader, which only loads the changed segments. This
+					// is safe while other threads use it, since the provider holds a reference.
+					newReaders[ i ] = readers[ i ].reopen();
+				}
+				
+				changed |= ( newReaders[ i ] != readers[ i ] );
+			}
 		}
 		catch( Exception e )
 		{
 			Log.error( "Exception failed while creating searcher.", e );
+			
+			releaseReaders( newReaders, readers );
 			return;
 		}
 		
+		if( !changed )
+		{
+			Log.info( "Index unchanged, keeping searcher." );
+			return;
+		}
+		
+		// Warm up the new searcher before it receives live traffic. Only the provider
+		// thread creates searchers, so the generation can't change in the meantime.
+		SearcherReference reference;
+		
+		try
+		{
+			reference = new SearcherReference( newReaders, getGeneration() + 1 );
+		}
+		catch( Exception e )
+		{
+			Log.error( "Exception failed while creating searcher.", e );
+			
+			releaseReaders( newReaders, readers );
+			return;
+		}
+		
+		warmer.warm( reference );
+		
 		synchronized( this )
 		{
-			// Now close the existing searcher.
-			if( searcher != null )
+			generation = reference.getGeneration();
+			current = reference;
+		}
+		
+		// Release the provider's references to the replaced shard readers, and to the
+		// existing searcher. They will be closed as soon as the searches still using
+		// them have completed.
+		releaseReaders( readers, newReaders );
+		readers = newReaders;
+		
+		if( previous != null )
+			previous.decRef();
+	}
+	
+	/** Releases the provider's reference to the readers that aren't in keep. */
+	private void releaseReaders( IndexReader[] release, IndexReader[] keep ) {
+		for( int i = 0; i < release.length; ++i )
+		{
+			if( release[ i ] == null || release[ i ] == keep[ i ] )
+				continue;
+			
+			try
 			{
-				try
-				{
-					searcher.close();
-				}
-				catch( Exception e )
-				{
-					Log.error( "Exception thrown while closing searcher.", e );
-				}
+				release[ i ].decRef();
+			}
+			catch( Exception e )
+			{
+				Log.error( "Exception thrown while closing reader.", e );
 			}
-			
-			searcher = tempSearcher;
 		}
 	}
 }
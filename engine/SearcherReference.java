@@ -0,0 +1,123 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.MultiReader;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.ParallelMultiSearcher;
+import org.apache.lucene.search.Searchable;
+import org.apache.lucene.search.Searcher;
+
+/** A reference counted searcher, as handed out by SearcherProvider.acquire().
+ * 
+ * The provider holds one reference for as long as the searcher is current, and every
+ * caller of acquire() holds another one until it calls SearcherProvider.release(). The
+ * searcher is only closed when the last reference is released, so replacing the searcher
+ * never closes it underneath an in-flight search.
+ * 
+ * The searcher of a sharded index searches the shards in parallel and merges their hits,
+ * while getReader() returns a MultiReader over the shards. Both number the documents the
+ * same way. The shard readers are shared with the other generations, so the reference
+ * only holds a reference count on each of them. */
+public class SearcherReference {
+	/** The searcher instance. */
+	private Searcher searcher = null;
+	
+	/** The reader the searcher was created for. */
+	private IndexReader reader = null;
+	
+	/** The readers of the shards. */
+	private IndexReader[] shardReaders = null;
+	
+	/** The generation of the searcher. */
+	private long generation = 0;
+	
+	/** The IDs of the documents of the reader, created when first needed. */
+	private IDColumnCache idColumn = null;
+	
+	/** The number of references, including the one held by the provider. */
+	private AtomicInteger refCount = new AtomicInteger( 1 );
+	
+	SearcherReference( IndexReader[] shardReaders, long generation ) throws IOException {
+		this.shardReaders = shardReaders.clone();
+		this.generation = generation;
+		
+		for( IndexReader shardReader : shardReaders )
+			shardReader.incRef();
+		
+		if( shardReaders.length == 1 )
+		{
+			reader = shardReaders[ 0 ];
+			searcher = new IndexSearcher( reader );
+		}
+		else
+		{
+			Searchable[] searchers = new Searchable[ shardReaders.length ];
+			for( int i = 0; i < shardReaders.length; ++i )
+				searchers[ i ] = new IndexSearcher( shardReaders[ i ] );
+			
+			// The MultiReader takes its own references to the shards.
+			reader = new MultiReader( shardReaders, false );
+			searcher = new ParallelMultiSearcher( searchers );
+		}
+	}
+	
+	/** Retrieves the searcher instance. */
+	public Searcher getSearcher() {
+		return searcher;
+	}
+	
+	/** Retrieves the underlying index reader instance. */
+	public IndexReader getReader() {
+		return reader;
+	}
+	
+	/** Retrieves the generation of the searcher. */
+	public long getGeneration() {
+		return generation;
+	}
+	
+	/** Retrieves the IDs of the documents of the reader, reading the IDs of the segments
+	 * that haven't been read for a previous generation. */
+	synchronized IDColumnCache getIDColumn() throws IOException {
+		if( idColumn == null )
+			idColumn = new IDColumnCache( reader );
+		
+		return idColumn;
+	}
+	
+	/** Adds a reference to the searcher. */
+	void incRef() {
+		refCount.incrementAndGet();
+	}
+	
+	/** Removes a reference, closing the searcher when the last one is removed. */
+	void decRef() {
+		if( refCount.decrementAndGet() == 0 )
+			close();
+	}
+	
+	/** Closes the searcher, and releases the shard readers. Shard readers and segments
+	 * shared with other generations stay open until those are closed as well. */
+	private void close() {
+		Log.info( "Closing searcher generation " + generation + "..." );
+		
+		try
+		{
+			// The searchers don't close readers they didn't open.
+			searcher.close();
+			
+			if( reader != shardReaders[ 0 ] )
+				reader.close();
+			
+			for( IndexReader shardReader : shardReaders )
+				shardReader.decRef();
+		}
+		catch( Exception e )
+		{
+			Log.error( "Exception thrown while closing searcher.", e );
+		}
+	}
+}
@@ -0,0 +1,231 @@
+package com.codegear.dn.search.engine;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.Searcher;
+import org.apache.lucene.search.TopScoreDocCollector;
+import org.apache.lucene.util.ReaderUtil;
+
+/** Warms up new searchers before SearcherProvider publishes them.
+ * 
+ * The warmer keeps a sample of the most recent distinct production queries, and runs
+ * the latest of them against every new searcher, so that term indexes, norms and the
+ * OS page cache are loaded before the searcher receives live traffic. The sets of the
+ * recently used filters and the ordinals of the counted facet fields are built for the
+ * new segments as well. */
+public class SearcherWarmer {
+	/** Default number of queries to run against a new searcher. */
+	public static final int DefaultWarmupQueries = 20;
+	
+	/** Default number of recent queries to keep. */
+	public static final int DefaultSampleSize = 100;
+	
+	/** Number of top hits whose stored documents are loaded for each query. */
+	public static final int WarmupHits = 10;
+	
+	/** Number of queries to run against a new searcher. */
+	private int warmupQueries = DefaultWarmupQueries;
+	
+	/** Indicates whether ID-only searches have been performed, so that the ID column of
+	 * new searchers should be read before they are published. */
+	private volatile boolean warmIDColumn = false;
+	
+	/** The recent queries, in access order. */
+	private LinkedHashMap<Query, Boolean> recentQueries = null;
+	
+	/** The recent filters, in access order. */
+	private LinkedHashMap<Filter, Boolean> recentFilters = null;
+	
+	/** The facet fields counted by production searches. */
+	private HashSet<String> facetFields = new HashSet<String>();
+	
+	public SearcherWarmer() {
+		Options options = Options.getInstance();
+		
+		warmupQueries = options.getIntOption( "warmupqueries", DefaultWarmupQueries );
+		
+		final int sampleSize = Math.max( warmupQueries,
+			options.getIntOption( "warmupsamplesize", DefaultSampleSize ) );
+		
+		recentQueries = new LinkedHashMap<Query, Boolean>( 16, 0.75f, true ) {
+			protected boolean removeEldestEntry( Map.Entry<Query, Boolean> eldest ) {
+				return size() > sampleSize;
+			}
+		};
+		
+		recentFilters = new LinkedHashMap<Filter, Boolean>( 16, 0.75f, true ) {
+			protected boolean removeEldestEntry( Map.Entry<Filter, Boolean> eldest ) {
+				return size() > sampleSize;
+			}
+		};
+	}
+	
+	/** Records a query executed by a production search. */
+	public void recordQuery( Query query ) {
+		if( warmupQueries <= 0 )
+			return;
+		
+		synchronized( recentQueries )
+		{
+			recentQueries.put( query, Boolean.TRUE );
+		}
+	}
+	
+	/** Records a filter applied by a production search. */
+	public void recordFilter( Filter filter ) {
+		synchronized( recentFilters )
+		{
+			recentFilters.put( filter, Boolean.TRUE );
+		}
+	}
+	
+	/** Records the facet fields counted by a production search. */
+	public void recordFacetFields( String[] fields ) {
+		synchronized( facetFields )
+		{
+			facetFields.addAll( Arrays.asList( fields ) );
+		}
+	}
+	
+	/** Records that a production search used the ID column. */
+	public void recordIDColumnUse() {
+		warmIDColumn = true;
+	}
+	
+	/** Runs the most recent queries against the specified searcher, which hasn't been
+	 * published yet. */
+	public void warm( SearcherReference reference ) {
+		if( warmIDColumn )
+		{
+			try
+			{
+				// Only the IDs of the new segments are read.
+				reference.getIDColumn();
+			}
+			catch( Exception e )
+			{
+				Log.error( "Failed to read the ID column of the new searcher.", e );
+			}
+		}
+		
+		warmFilters( reference.getReader() );
+		warmFacetFields( reference.getReader() );
+		
+		List<Query> queries = getRecentQueries();
+		if( queries.isEmpty() )
+			return;
+		
+		Searcher searcher = reference.getSearcher();
+		long startTime = System.currentTimeMillis();
+		
+		for( Query query : queries )
+		{
+			try
+			{
+				TopScoreDocCollector collector = TopScoreDocCollector.create( WarmupHits, false );
+				
+				searcher.search( query, collector );
+				
+				// Also load the stored documents of the top hits.
+				for( ScoreDoc scoreDoc : collector.topDocs().scoreDocs )
+					searcher.doc( scoreDoc.doc, ResultFieldSelector.AllFields );
+			}
+			catch( Exception e )
+			{
+				Log.error( "Warm-up query '" + query + "' failed.", e );
+			}
+		}
+		
+		Log.info( "Searcher generation " + reference.getGeneration() + " warmed up with " + queries.size() +
+			" queries in " + ( System.currentTimeMillis() - startTime ) + "ms." );
+	}
+	
+	/** Builds the sets of the recent filters for the segments of the specified reader. The
+	 * filters cache their sets per segment, so only the new segments are read. */
+	private void warmFilters( IndexReader reader ) {
+		ArrayList<Filter> filters;
+		
+		synchronized( recentFilters )
+		{
+			filters = new ArrayList<Filter>( recentFilters.keySet() );
+		}
+		
+		if( filters.isEmpty() )
+			return;
+		
+		ArrayList<IndexReader> segments = new ArrayList<IndexReader>();
+		
+		ReaderUtil.gatherSubReaders( segments, reader );
+		
+		for( Filter filter : filters )
+		{
+			try
+			{
+				for( IndexReader segment : segments )
+					filter.getDocIdSet( segment );
+			}
+			catch( Exception e )
+			{
+				Log.error( "Warm-up of filter '" + filter + "' failed.", e );
+			}
+		}
+	}
+	
+	/** Reads the ordinals of the counted facet fields for the segments of the specified
+	 * reader. The field cache is kept per segment, so only the new segments are read. */
+	private void warmFacetFields( IndexReader reader ) {
+		ArrayList<String> fields;
+		
+		synchronized( facetFields )
+		{
+			fields = new ArrayList<String>( facetFields );
+		}
+		
+		if( fields.isEmpty() )
+			return;
+		
+		ArrayList<IndexReader> segments = new ArrayList<IndexReader>();
+		ReaderUtil.gatherSubReaders( segments, reader );
+		
+		for( String field : fields )
+		{
+			try
+			{
+				for( IndexReader segment : segments )
+					FieldCache.DEFAULT.getStringIndex( segment, field );
+			}
+			catch( Exception e )
+			{
+				Log.error( "Warm-up of facet field '" + field + "' failed.", e );
+			}
+		}
+	}
+	
+	/** Returns the queries to run against a new searcher, most recent first. */
+	private List<Query> getRecentQueries() {
+		ArrayList<Query> queries = new ArrayList<Query>();
+		
+		synchronized( recentQueries )
+		{
+			queries.addAll( recentQueries.keySet() );
+		}
+		
+		// The most recently used queries are at the end of the access order.
+		ArrayList<Query> result = new ArrayList<Query>( warmupQueries );
+		
+		for( int i = queries.size() - 1; i >= 0 && result.size() < warmupQueries; --i )
+			result.add( queries.get( i ) );
+		
+		return result;
+	}
+}
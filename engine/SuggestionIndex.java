@@ -0,0 +1,785 @@
+package com.codegear.dn.search.engine;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.analysis.tokenattributes.TermAttribute;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.MapFieldSelector;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.TermFreqVector;
+import org.apache.lucene.index.TermPositionVector;
+
+/** In-memory index of the 1, 2 and 3 word phrases of the indexed bodies, used to answer
+ * the type-ahead suggestions of retrieveMatchingTerms.
+ * 
+ * Every phrase has an integer ID and is weighted by the number of documents that contain
+ * it. Documents keep the IDs of their phrases, so updates and deletes only change the
+ * weights. The words and the 2 and 3 word phrases of a body are limited to the ones
+ * occurring most often in it.
+ * 
+ * The indexer threads only record which IDs have changed. refresh() publishes the changes
+ * to the lookups: the weights of the published phrases are updated in place, and the new
+ * phrases are added as a sorted run. Runs are merged with the previous run once it is no
+ * more than twice as large, so every phrase is merged a logarithmic number of times. Each
+ * run has a max tree over its weights, so the most frequent phrases starting with a
+ * prefix are found with a few binary searches per run. Lookups never take the lock of the
+ * indexer threads, only the read lock of the published phrases.
+ * 
+ * The phrases aren't persisted, so they are rebuilt from the body term vectors when the
+ * engine starts, and isReady() returns false until the rebuild is complete. */
+class SuggestionIndex {
+	/** Default maximum number of distinct words taken from a document. */
+	public static final int DefaultMaxDocumentWords = 512;
+	
+	/** Default maximum number of distinct 2 and 3 word phrases taken from a document. */
+	public static final int DefaultMaxDocumentPhrases = 256;
+	
+	/** Default time in milliseconds between the publications of the changed phrases. */
+	public static final long DefaultRefreshInterval = 1000;
+	
+	/** Words longer than this are not part of any phrase. */
+	private static final int MaxWordLength = 40;
+	
+	/** The maximum number of words in a phrase. */
+	private static final int MaxPhraseWords = 3;
+	
+	/** Number of suggestions returned for phrases of 1, 2 and 3 words. */
+	private static final int[] SuggestionCounts =
+		new int[] { LuceneEngine.OneWordMax, LuceneEngine.TwoWordMax, LuceneEngine.ThreeWordMax };
+	
+	/** Analyzer matching the one used for the body field. */
+	private Analyzer analyzer = new StandardAnalyzer();
+	
+	private int maxDocumentWords = DefaultMaxDocumentWords;
+	private int maxDocumentPhrases = DefaultMaxDocumentPhrases;
+	
+	// The phrases by ID, their number of words and the number of documents containing them.
+	// An ID is reused once no document contains its phrase.
+	private String[] phrases = new String[ 1024 ];
+	private byte[] phraseWords = new byte[ 1024 ];
+	private int[] counts = new int[ 1024 ];
+	private int phraseCount = 0;
+	
+	/** The IDs of the phrases. */
+	private HashMap<String, Integer> phraseIDs = new HashMap<String, Integer>();
+	
+	/** The IDs that aren't in use. */
+	private int[] freeIDs = new int[ 64 ];
+	private int freeIDCount = 0;
+	
+	/** The phrase IDs of each document, by Lucene ID. */
+	private HashMap<String, int[]> documents = new HashMap<String, int[]>();
+	
+	/** The IDs whose phrase or weight has changed since the last refresh. */
+	private int[] changedIDs = new int[ 1024 ];
+	private int changedIDCount = 0;
+	private BitSet isChangedID = new BitSet();
+	
+	/** IDs of the documents deleted before the rebuild completed, or null once it is. */
+	private HashSet<String> rebuildTombstones = new HashSet<String>();
+	
+	/** Serializes the refreshes, which are the only writers of the published phrases. */
+	private final Object refreshLock = new Object();
+	
+	/** Guards the published phrases against the refreshes while lookups read them. */
+	private final ReentrantReadWriteLock publishedLock = new ReentrantReadWriteLock();
+	
+	/** The published runs of phrases of 1, 2 and 3 words, largest first. */
+	private ArrayList<ArrayList<PhraseList>> runs = new ArrayList<ArrayList<PhraseList>>();
+	
+	// The run and the position of the published phrase of each ID, or null if the ID has
+	// no published phrase. Only used by the refreshes.
+	private PhraseList[] locationRuns = new PhraseList[ 1024 ];
+	private int[] locationPositions = new int[ 1024 ];
+	
+	/** Indicates whether the index has been rebuilt and can answer lookups. */
+	private volatile boolean ready = false;
+	
+	public SuggestionIndex() {
+		Options options = Options.getInstance();
+		
+		maxDocumentWords = Math.max( 0, options.getIntOption( "suggestionmaxwords", DefaultMaxDocumentWords ) );
+		maxDocumentPhrases = Math.max( 0, options.getIntOption( "suggestionmaxphrases", DefaultMaxDocumentPhrases ) );
+		
+		for( int w = 0; w < MaxPhraseWords; ++w )
+			runs.add( new ArrayList<PhraseList>() );
+	}
+	
+	/** Indicates whether the index contains the phrases of all the documents. */
+	public boolean isReady() {
+		return ready;
+	}
+	
+	/** Extracts the distinct phrases of text, analyzed the same way as the body field.
+	 * Doesn't modify the index, so it can be called concurrently. */
+	public String[] extractPhrases( String text ) throws IOException {
+		if( text == null || text.length() == 0 )
+			return new String[ 0 ];
+		
+		ArrayList<String> words = new ArrayList<String>();
+		
+		TokenStream stream = analyzer.reusableTokenStream( ContentFields.BODY_FIELD, new StringReader( text ) );
+		TermAttribute termAttribute = (TermAttribute)stream.addAttribute( TermAttribute.class );
+		
+		stream.reset();
+		
+		while( stream.incrementToken() )
+			words.add( termAttribute.term() );
+		
+		stream.close();
+		
+		return collectPhrases( words );
+	}
+	
+	/** Replaces the phrases of a document. */
+	public synchronized void update( String luceneID, String[] phrases ) {
+		removeDocument( luceneID );
+		addDocument( luceneID, phrases );
+	}
+	
+	/** Removes the phrases of a document. */
+	public synchronized void remove( String luceneID ) {
+		removeDocument( luceneID );
+		
+		if( rebuildTombstones != null )
+			rebuildTombstones.add( luceneID );
+	}
+	
+	/** Returns the most frequent phrases whose first word starts with prefix, formatted as
+	 * required queries: first the single words, then the 2 and 3 word phrases. The phrases
+	 * are those of the last refresh. */
+	public ArrayList<String> lookup( String prefix ) {
+		ArrayList<String> results = new ArrayList<String>();
+		
+		prefix = prefix.toLowerCase();
+		
+		publishedLock.readLock().lock();
+		try
+		{
+			for( int w = 0; w < MaxPhraseWords; ++w )
+			{
+				for( String phrase : PhraseList.getTop( runs.get( w ), prefix, SuggestionCounts[ w ] ) )
+					results.add( "+" + phrase.replace( " ", " +" ) );
+			}
+		}
+		finally
+		{
+			publishedLock.readLock().unlock();
+		}
+		
+		return results;
+	}
+	
+	/** Publishes the phrases changed since the last refresh to the lookups. Only the changed
+	 * IDs are copied while the lock of the indexer threads is held. */
+	public void refresh() {
+		synchronized( refreshLock )
+		{
+			publishChanges();
+		}
+	}
+	
+	/** Updates the published phrases with the changed IDs. Must be called with the refresh
+	 * lock held. */
+	private void publishChanges() {
+		int changeCount;
+		int[] ids;
+		String[] texts;
+		byte[] words;
+		int[] weights;
+		
+		synchronized( this )
+		{
+			changeCount = changedIDCount;
+			if( changeCount == 0 )
+				return;
+			
+			ids = Arrays.copyOf( changedIDs, changeCount );
+			texts = new String[ changeCount ];
+			words = new byte[ changeCount ];
+			weights = new int[ changeCount ];
+			
+			for( int i = 0; i < changeCount; ++i )
+			{
+				texts[ i ] = phrases[ ids[ i ] ];
+				words[ i ] = phraseWords[ ids[ i ] ];
+				weights[ i ] = counts[ ids[ i ] ];
+				isChangedID.clear( ids[ i ] );
+			}
+			
+			changedIDCount = 0;
+		}
+		
+		if( locationRuns.length < phraseCount() )
+		{
+			locationRuns = Arrays.copyOf( locationRuns, phraseCount() );
+			locationPositions = Arrays.copyOf( locationPositions, phraseCount() );
+		}
+		
+		// The changes of each length that aren't published yet.
+		ArrayList<ArrayList<Integer>> added = new ArrayList<ArrayList<Integer>>();
+		for( int w = 0; w < MaxPhraseWords; ++w )
+			added.add( new ArrayList<Integer>() );
+		
+		// Update the weights of the published phrases in place. An ID whose phrase has been
+		// released, and possibly reused for another phrase, leaves a zero weight behind,
+		// which is dropped when its run is next merged.
+		publishedLock.writeLock().lock();
+		try
+		{
+			for( int i = 0; i < changeCount; ++i )
+			{
+				PhraseList run = locationRuns[ ids[ i ] ];
+				
+				if( run != null )
+				{
+					int position = locationPositions[ ids[ i ] ];
+					
+					if( texts[ i ] != null && texts[ i ].equals( run.phrases[ position ] ) )
+					{
+						run.setCount( position, weights[ i ] );
+						continue;
+					}
+					
+					run.setCount( position, 0 );
+					locationRuns[ ids[ i ] ] = null;
+				}
+				
+				if( texts[ i ] != null )
+					added.get( words[ i ] - 1 ).add( i );
+			}
+		}
+		finally
+		{
+			publishedLock.writeLock().unlock();
+		}
+		
+		// Sort the new phrases into a run, and merge it with the runs that aren't more than
+		// twice as large. The runs are built outside the write lock, since only the refreshes
+		// modify them.
+		for( int w = 0; w < MaxPhraseWords; ++w )
+		{
+			ArrayList<PhraseList> currentRuns = runs.get( w );
+			ArrayList<PhraseList> newRuns = new ArrayList<PhraseList>( currentRuns );
+			PhraseList run = null;
+			
+			if( !added.get( w ).isEmpty() )
+			{
+				run = PhraseList.create( added.get( w ), ids, texts, weights );
+				
+				while( !newRuns.isEmpty() && newRuns.get( newRuns.size() - 1 ).size() <= run.size() * 2 )
+					run = PhraseList.merge( newRuns.remove( newRuns.size() - 1 ), run );
+			}
+			
+			// Runs whose phrases have mostly been released are compacted.
+			for( int r = 0; r < newRuns.size(); ++r )
+			{
+				if( newRuns.get( r ).isSparse() )
+					newRuns.set( r, PhraseList.merge( newRuns.get( r ), new PhraseList() ) );
+			}
+			
+			if( run != null )
+				newRuns.add( run );
+			
+			if( newRuns.equals( currentRuns ) )
+				continue;
+			
+			for( PhraseList newRun : newRuns )
+			{
+				if( !currentRuns.contains( newRun ) )
+					setLocations( newRun );
+			}
+			
+			publishedLock.writeLock().lock();
+			try
+			{
+				runs.set( w, newRuns );
+			}
+			finally
+			{
+				publishedLock.writeLock().unlock();
+			}
+		}
+	}
+	
+	/** Records the positions of the phrases of a new run. */
+	private void setLocations( PhraseList run ) {
+		for( int i = 0; i < run.size(); ++i )
+		{
+			locationRuns[ run.ids[ i ] ] = run;
+			locationPositions[ run.ids[ i ] ] = i;
+		}
+	}
+	
+	private synchronized int phraseCount() {
+		return phraseCount;
+	}
+	
+	/** Adds the phrases of the documents in reader, skipping the documents that have been
+	 * updated or deleted since, then publishes them and marks the index as ready. */
+	public void rebuild( IndexReader reader ) throws IOException {
+		MapFieldSelector idSelector = new MapFieldSelector( new String[] { ContentFields.ID_FIELD } );
+		
+		long startTime = System.currentTimeMillis();
+		int maxDoc = reader.maxDoc();
+		
+		for( int i = 0; i < maxDoc; ++i )
+		{
+			if( reader.isDeleted( i ) )
+				continue;
+			
+			Document doc = reader.document( i, idSelector );
+			String luceneID = doc.get( ContentFields.ID_FIELD );
+			if( luceneID == null )
+				continue;
+			
+			String[] docPhrases = collectPhrases( reader.getTermFreqVector( i, ContentFields.BODY_FIELD ) );
+			
+			synchronized( this )
+			{
+				if( !documents.containsKey( luceneID ) && !rebuildTombstones.contains( luceneID ) )
+					addDocument( luceneID, docPhrases );
+			}
+		}
+		
+		synchronized( this )
+		{
+			rebuildTombstones = null;
+		}
+		
+		refresh();
+		
+		ready = true;
+		
+		Log.info( "Suggestion index rebuilt from " + maxDoc + " documents in " + ( System.currentTimeMillis() - startTime ) + "ms." );
+	}
+	
+	/** Rebuilds the sequence of words of a body from its term position vector. */
+	private String[] collectPhrases( TermFreqVector vector ) {
+		if( !( vector instanceof TermPositionVector ) )
+			return new String[ 0 ];
+		
+		TermPositionVector positionVector = (TermPositionVector)vector;
+		String[] terms = positionVector.getTerms();
+		
+		int length = 0;
+		for( int i = 0; i < terms.length; ++i )
+		{
+			for( int position : positionVector.getTermPositions( i ) )
+				length = Math.max( length, position + 1 );
+		}
+		
+		String[] positions = new String[ length ];
+		for( int i = 0; i < terms.length; ++i )
+		{
+			for( int position : positionVector.getTermPositions( i ) )
+				positions[ position ] = terms[ i ];
+		}
+		
+		ArrayList<String> words = new ArrayList<String>( length );
+		for( String word : positions )
+		{
+			if( word != null )
+				words.add( word );
+		}
+		
+		return collectPhrases( words );
+	}
+	
+	/** Returns the distinct words of a sequence of words, followed by its distinct 2 and 3
+	 * word phrases, each limited to the ones occurring most often in the sequence. Words and
+	 * phrases occurring equally often are taken in order of first occurrence. */
+	private String[] collectPhrases( List<String> words ) {
+		LinkedHashMap<String, Integer> singleWords = new LinkedHashMap<String, Integer>();
+		LinkedHashMap<String, Integer> multiWordPhrases = new LinkedHashMap<String, Integer>();
+		StringBuilder phrase = new StringBuilder();
+		
+		for( int i = 0; i < words.size(); ++i )
+		{
+			phrase.setLength( 0 );
+			
+			for( int j = i; j < i + MaxPhraseWords && j < words.size(); ++j )
+			{
+				String word = words.get( j );
+				if( word.length() > MaxWordLength )
+					break;
+				
+				if( j > i )
+					phrase.append( ' ' );
+				
+				phrase.append( word );
+				
+				Map<String, Integer> frequencies = ( j == i ) ? singleWords : multiWordPhrases;
+				String key = phrase.toString();
+				Integer frequency = frequencies.get( key );
+				
+				frequencies.put( key, ( frequency == null ) ? 1 : frequency + 1 );
+			}
+		}
+		
+		ArrayList<String> result = new ArrayList<String>();
+		
+		addMostFrequent( result, singleWords, maxDocumentWords );
+		addMostFrequent( result, multiWordPhrases, maxDocumentPhrases );
+		
+		return result.toArray( new String[ result.size() ] );
+	}
+	
+	/** Adds the phrases with the highest frequencies to result, in order of decreasing
+	 * frequency. */
+	private static void addMostFrequent( List<String> result, LinkedHashMap<String, Integer> frequencies, int max ) {
+		// The sort is stable, so the order of first occurrence is kept for equal frequencies.
+		ArrayList<Map.Entry<String, Integer>> entries = new ArrayList<Map.Entry<String, Integer>>( frequencies.entrySet() );
+		Collections.sort( entries, new Comparator<Map.Entry<String, Integer>>() {
+			public int compare( Map.Entry<String, Integer> e1, Map.Entry<String, Integer> e2 ) {
+				return e2.getValue().compareTo( e1.getValue() );
+			}
+		} );
+		
+		for( int i = 0; i < entries.size() && i < max; ++i )
+			result.add( entries.get( i ).getKey() );
+	}
+	
+	/** Adds the phrases of a document. Must be called with the lock held. */
+	private void addDocument( String luceneID, String[] docPhrases ) {
+		int[] ids = new int[ docPhrases.length ];
+		
+		for( int i = 0; i < docPhrases.length; ++i )
+		{
+			Integer id = phraseIDs.get( docPhrases[ i ] );
+			
+			if( id == null )
+			{
+				id = allocateID( docPhrases[ i ] );
+				phraseIDs.put( docPhrases[ i ], id );
+			}
+			
+			++counts[ id ];
+			ids[ i ] = id;
+			setChanged( id );
+		}
+		
+		documents.put( luceneID, ids );
+	}
+	
+	/** Removes the phrases of a document, releasing the IDs of the phrases that are no
+	 * longer used. Must be called with the lock held. */
+	private void removeDocument( String luceneID ) {
+		int[] ids = documents.remove( luceneID );
+		if( ids == null )
+			return;
+		
+		for( int id : ids )
+		{
+			if( --counts[ id ] == 0 )
+			{
+				phraseIDs.remove( phrases[ id ] );
+				phrases[ id ] = null;
+				
+				if( freeIDCount == freeIDs.length )
+					freeIDs = Arrays.copyOf( freeIDs, freeIDCount * 2 );
+				
+				freeIDs[ freeIDCount++ ] = id;
+			}
+			
+			setChanged( id );
+		}
+	}
+	
+	/** Assigns an ID to a new phrase. Must be called with the lock held. */
+	private int allocateID( String phrase ) {
+		int id;
+		
+		if( freeIDCount > 0 )
+		{
+			id = freeIDs[ --freeIDCount ];
+		}
+		else
+		{
+			if( phraseCount == phrases.length )
+			{
+				phrases = Arrays.copyOf( phrases, phraseCount * 2 );
+				phraseWords = Arrays.copyOf( phraseWords, phraseCount * 2 );
+				counts = Arrays.copyOf( counts, phraseCount * 2 );
+			}
+			
+			id = phraseCount++;
+		}
+		
+		phrases[ id ] = phrase;
+		phraseWords[ id ] = (byte)countWords( phrase );
+		counts[ id ] = 0;
+		
+		return id;
+	}
+	
+	/** Records that the phrase or the weight of an ID has changed. Must be called with the
+	 * lock held. */
+	private void setChanged( int id ) {
+		if( isChangedID.get( id ) )
+			return;
+		
+		if( changedIDCount == changedIDs.length )
+			changedIDs = Arrays.copyOf( changedIDs, changedIDCount * 2 );
+		
+		changedIDs[ changedIDCount++ ] = id;
+		isChangedID.set( id );
+	}
+	
+	private static int countWords( String phrase ) {
+		int words = 1;
+		
+		for( int i = 0; i < phrase.length(); ++i )
+		{
+			if( phrase.charAt( i ) == ' ' )
+				++words;
+		}
+		
+		return words;
+	}
+	
+	/** Sorted run of published phrases of one length, with their IDs and weights. A binary
+	 * tree over the weights holds the position of the largest weight of each range, so the
+	 * most frequent phrases of a prefix range are found in logarithmic time, and a weight
+	 * is updated in logarithmic time. A weight of 0 marks a released phrase. */
+	private static class PhraseList {
+		String[] phrases = new String[ 0 ];
+		int[] ids = new int[ 0 ];
+		int[] counts = new int[ 0 ];
+		
+		/** Number of released phrases. */
+		int releasedCount = 0;
+		
+		/** Position of the largest weight below each node, with the leaves at leafStart. */
+		int[] tree = new int[ 0 ];
+		int leafStart = 0;
+		
+		int size() {
+			return phrases.length;
+		}
+		
+		/** Indicates whether most of the phrases have been released. */
+		boolean isSparse() {
+			return releasedCount > 0 && releasedCount * 2 >= phrases.length;
+		}
+		
+		/** Returns a run of the changes at the specified indexes, sorted by phrase. */
+		static PhraseList create( List<Integer> indexes, int[] ids, final String[] texts, int[] weights ) {
+			Collections.sort( indexes, new Comparator<Integer>() {
+				public int compare( Integer i1, Integer i2 ) {
+					return texts[ i1 ].compareTo( texts[ i2 ] );
+				}
+			} );
+			
+			PhraseList list = new PhraseList( indexes.size() );
+			
+			for( int i = 0; i < indexes.size(); ++i )
+			{
+				list.phrases[ i ] = texts[ indexes.get( i ) ];
+				list.ids[ i ] = ids[ indexes.get( i ) ];
+				list.counts[ i ] = weights[ indexes.get( i ) ];
+			}
+			
+			list.buildTree();
+			
+			return list;
+		}
+		
+		/** Returns a run containing the phrases of both runs that haven't been released. A
+		 * phrase is only published in one run, so the runs contain different phrases. */
+		static PhraseList merge( PhraseList list1, PhraseList list2 ) {
+			PhraseList list = new PhraseList( list1.size() - list1.releasedCount + list2.size() - list2.releasedCount );
+			int size = 0;
+			int i1 = 0;
+			int i2 = 0;
+			
+			while( i1 < list1.size() || i2 < list2.size() )
+			{
+				PhraseList source;
+				int i;
+				
+				if( i2 == list2.size() || ( i1 < list1.size() && list1.phrases[ i1 ].compareTo( list2.phrases[ i2 ] ) < 0 ) )
+				{
+					source = list1;
+					i = i1++;
+				}
+				else
+				{
+					source = list2;
+					i = i2++;
+				}
+				
+				if( source.counts[ i ] == 0 )
+					continue;
+				
+				list.phrases[ size ] = source.phrases[ i ];
+				list.ids[ size ] = source.ids[ i ];
+				list.counts[ size++ ] = source.counts[ i ];
+			}
+			
+			list.buildTree();
+			
+			return list;
+		}
+		
+		PhraseList() {
+			buildTree();
+		}
+		
+		private PhraseList( int size ) {
+			phrases = new String[ size ];
+			ids = new int[ size ];
+			counts = new int[ size ];
+		}
+		
+		/** Changes the weight of a phrase. */
+		void setCount( int position, int count ) {
+			if( count == 0 && counts[ position ] != 0 )
+				++releasedCount;
+			
+			counts[ position ] = count;
+			
+			for( int node = ( leafStart + position ) / 2; node >= 1; node /= 2 )
+				tree[ node ] = better( tree[ node * 2 ], tree[ node * 2 + 1 ] );
+		}
+		
+		/** Returns the phrases of the runs starting with prefix with the largest weights, in
+		 * order of decreasing weight, then alphabetically. */
+		static List<String> getTop( List<PhraseList> runs, String prefix, int count ) {
+			ArrayList<String> top = new ArrayList<String>( count );
+			
+			// The candidate ranges of all runs, each represented by its run and the position
+			// of its largest weight.
+			ArrayList<int[]> ranges = new ArrayList<int[]>();
+			
+			for( int r = 0; r < runs.size(); ++r )
+			{
+				PhraseList run = runs.get( r );
+				run.addRange( ranges, r, run.lowerBound( prefix ), run.lowerBound( prefix + Character.MAX_VALUE ) );
+			}
+			
+			while( top.size() < count && !ranges.isEmpty() )
+			{
+				int best = 0;
+				for( int i = 1; i < ranges.size(); ++i )
+				{
+					int[] range = ranges.get( i );
+					int[] bestRange = ranges.get( best );
+					
+					if( isBefore( runs.get( range[ 0 ] ), range[ 3 ], runs.get( bestRange[ 0 ] ), bestRange[ 3 ] ) )
+						best = i;
+				}
+				
+				int[] range = ranges.remove( best );
+				PhraseList run = runs.get( range[ 0 ] );
+				int position = range[ 3 ];
+				
+				top.add( run.phrases[ position ] );
+				
+				run.addRange( ranges, range[ 0 ], range[ 1 ], position );
+				run.addRange( ranges, range[ 0 ], position + 1, range[ 2 ] );
+			}
+			
+			return top;
+		}
+		
+		/** Adds the range [start, end) of the run to ranges, if it contains a phrase that
+		 * hasn't been released. */
+		private void addRange( List<int[]> ranges, int run, int start, int end ) {
+			if( start >= end )
+				return;
+			
+			int position = getMax( start, end );
+			
+			if( counts[ position ] > 0 )
+				ranges.add( new int[] { run, start, end, position } );
+		}
+		
+		private void buildTree() {
+			leafStart = 1;
+			while( leafStart < counts.length )
+				leafStart *= 2;
+			
+			tree = new int[ leafStart * 2 ];
+			Arrays.fill( tree, -1 );
+			
+			for( int i = 0; i < counts.length; ++i )
+				tree[ leafStart + i ] = i;
+			
+			for( int node = leafStart - 1; node >= 1; --node )
+				tree[ node ] = better( tree[ node * 2 ], tree[ node * 2 + 1 ] );
+		}
+		
+		/** Returns the position of the largest weight in [start, end). */
+		private int getMax( int start, int end ) {
+			int best = -1;
+			
+			for( int lo = start + leafStart, hi = end + leafStart; lo < hi; lo /= 2, hi /= 2 )
+			{
+				if( ( lo & 1 ) == 1 )
+					best = better( best, tree[ lo++ ] );
+				
+				if( ( hi & 1 ) == 1 )
+					best = better( best, tree[ --hi ] );
+			}
+			
+			return best;
+		}
+		
+		/** Returns the position of the better of two phrases, where -1 is no phrase. */
+		private int better( int p1, int p2 ) {
+			if( p1 < 0 )
+				return p2;
+			
+			if( p2 < 0 )
+				return p1;
+			
+			return isBefore( this, p2, this, p1 ) ? p2 : p1;
+		}
+		
+		/** Indicates whether the phrase at p1 of list1 ranks before the one at p2 of list2: a
+		 * larger weight, or an equal weight and alphabetically first. */
+		private static boolean isBefore( PhraseList list1, int p1, PhraseList list2, int p2 ) {
+			if( list1.counts[ p1 ] != list2.counts[ p2 ] )
+				return list1.counts[ p1 ] > list2.counts[ p2 ];
+			
+			if( list1 == list2 )
+				return p1 < p2;
+			
+			return list1.phrases[ p1 ].compareTo( list2.phrases[ p2 ] ) < 0;
+		}
+		
+		/** Returns the position of the first phrase that isn't smaller than key. */
+		private int lowerBound( String key ) {
+			int lo = 0;
+			int hi = phrases.length;
+			
+			while( lo < hi )
+			{
+				int mid = ( lo + hi ) >>> 1;
+				
+				if( phrases[ mid ].compareTo( key ) < 0 )
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			
+			return lo;
+		}
+	}
+}
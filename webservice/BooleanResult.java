@@ -1,10 +1,12 @@
 package com.codegear.dn.search.webservice;
 
-/** Encapsulates a boolean web service result, with an optional message. */
+/** Encapsulates a boolean web service result, with an optional message. retryLater
+ * indicates that the request failed because the server is busy, and should be repeated. */
 public class BooleanResult {
 
 	private String message;
 	private boolean result;
+	private boolean retryLater;
 
 	public BooleanResult() {
 		result = false;
@@ -16,6 +18,12 @@ public class BooleanResult {
 		this.message = message;
 	}
 	
+	public BooleanResult( boolean result, String message, boolean retryLater ) {
+		this.result = result;
+		this.message = message;
+		this.retryLater = retryLater;
+	}
+	
 	public boolean getResult() {
 		return result;
 	}
@@ -31,4 +39,12 @@ public class BooleanResult {
 	public void setMessage(String property1) {
 		this.message = property1;
 	}
+
+	public boolean getRetryLater() {
+		return retryLater;
+	}
+
+	public void setRetryLater(boolean property1) {
+		this.retryLater = property1;
+	}
 }
@@ -0,0 +1,186 @@
+package com.codegear.dn.search.webservice;
+
+import com.codegear.dn.search.engine.ContentFields;
+import com.codegear.dn.search.engine.EngineException;
+import com.codegear.dn.search.engine.SourceCodeSnippet;
+
+/** Encapsulates a single document passed to the bulk indexing web service methods. */
+public class ContentItem {
+
+	private String appID;
+	private String contentID;
+	private String author;
+	private String title;
+	private String summary;
+	private String body;
+	private String publicationDate;
+	private String languageCode;
+	private String comments;
+	private String product;
+	private String version;
+	private String tags;
+	private String category;
+	private String extraData;
+	private String contentType;
+	private String workaround;
+	private String allSource;
+	private SourceCodeSnippet[] snippets;
+
+	public ContentItem() {
+	}
+	
+	public String getAppID() {
+		return appID;
+	}
+
+	public void setAppID(String property1) {
+		this.appID = property1;
+	}
+	
+	public String getContentID() {
+		return contentID;
+	}
+
+	public void setContentID(String property1) {
+		this.contentID = property1;
+	}
+	
+	public String getAuthor() {
+		return author;
+	}
+
+	public void setAuthor(String property1) {
+		this.author = property1;
+	}
+	
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String property1) {
+		this.title = property1;
+	}
+	
+	public String getSummary() {
+		return summary;
+	}
+
+	public void setSummary(String property1) {
+		this.summary = property1;
+	}
+	
+	public String getBody() {
+		return body;
+	}
+
+	public void setBody(String property1) {
+		this.body = property1;
+	}
+	
+	public String getPublicationDate() {
+		return publicationDate;
+	}
+
+	public void setPublicationDate(String property1) {
+		this.publicationDate = property1;
+	}
+	
+	public String getLanguageCode() {
+		return languageCode;
+	}
+
+	public void setLanguageCode(String property1) {
+		this.languageCode = property1;
+	}
+	
+	public String getComments() {
+		return comments;
+	}
+
+	public void setComments(String property1) {
+		this.comments = property1;
+	}
+	
+	public String getProduct() {
+		return product;
+	}
+
+	public void setProduct(String property1) {
+		this.product = property1;
+	}
+	
+	public String getVersion() {
+		return version;
+	}
+
+	public void setVersion(String property1) {
+		this.version = property1;
+	}
+	
+	public String getTags() {
+		return tags;
+	}
+
+	public void setTags(String property1) {
+		this.tags = property1;
+	}
+	
+	public String getCategory() {
+		return category;
+	}
+
+	public void setCategory(String property1) {
+		this.category = property1;
+	}
+	
+	public String getExtraData() {
+		return extraData;
+	}
+
+	public void setExtraData(String property1) {
+		this.extraData = property1;
+	}
+	
+	public String getContentType() {
+		return contentType;
+	}
+
+	public void setContentType(String property1) {
+		this.contentType = property1;
+	}
+	
+	public String getWorkaround() {
+		return workaround;
+	}
+
+	public void setWorkaround(String property1) {
+		this.workaround = property1;
+	}
+	
+	public String getAllSource() {
+		return allSource;
+	}
+
+	public void setAllSource(String property1) {
+		this.allSource = property1;
+	}
+	
+	public SourceCodeSnippet[] getSnippets() {
+		return snippets;
+	}
+
+	public void setSnippets(SourceCodeSnippet[] property1) {
+		this.snippets = property1;
+	}
+	
+	/** Creates the ContentFields instance for this document, validating the fields. */
+	public ContentFields createContentFields( boolean isHTML ) throws EngineException {
+		// Only documents with source code need the constructor that takes the snippets.
+		if( allSource != null || snippets != null )
+			return new ContentFields( appID, contentID, author, title, summary, body, publicationDate, languageCode,
+					comments, product, version, tags, category, extraData, contentType, allSource, snippets, isHTML );
+		
+		return new ContentFields( appID, contentID, author, title, summary, body, publicationDate, languageCode,
+				comments, product, version, tags, category, extraData, contentType, workaround, isHTML );
+	}
+}
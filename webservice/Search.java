@@ -1,8 +1,11 @@
 package com.codegear.dn.search.webservice;
 
+import java.util.ArrayList;
+
 import com.codegear.dn.search.engine.ContentFields;
 import com.codegear.dn.search.engine.EngineException;
 import com.codegear.dn.search.engine.LuceneEngine;
+import com.codegear.dn.search.engine.QueueFullException;
 import com.codegear.dn.search.engine.SearchResult;
 
 /** Search is the public class that contains the web service methods.
@@ -35,7 +38,7 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
 		}
 	}
 	
@@ -49,7 +52,7 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
 		}
 	}
 	
@@ -67,7 +70,7 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
 		}
 	}
 	
@@ -85,7 +88,7 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
 		}
 	}
 	
@@ -103,7 +106,7 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
 		}
 	}
 	
@@ -121,10 +124,28 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
 		}
 	}
 	
+	/**
+	 * Indexes multiple documents with a single call, queuing them as one batch.
+	 * @param items
+	 * @return BooleanResult[] with one result per item
+	 */
+	public com.codegear.dn.search.webservice.BooleanResult[] indexContentBatch( com.codegear.dn.search.webservice.ContentItem[] items ) {
+		return indexContentBatch( items, false );
+	}
+	
+	/**
+	 * Indexes multiple HTML documents with a single call, queuing them as one batch.
+	 * @param items
+	 * @return BooleanResult[] with one result per item
+	 */
+	public com.codegear.dn.search.webservice.BooleanResult[] indexHTMLContentBatch( com.codegear.dn.search.webservice.ContentItem[] items ) {
+		return indexContentBatch( items, true );
+	}
+	
 	/** Deletes a document from the index. */
 	public com.codegear.dn.search.webservice.BooleanResult deleteContent( java.lang.String appID, java.lang.String contentID ) {
 		try
@@ -135,7 +156,21 @@ public class Search {
 		}
 		catch( EngineException ee )
 		{
-			return new BooleanResult( false, ee.toString() );
+			return createErrorResult( ee );
+		}
+	}
+	
+	/** Requests a full optimize of the index, as a maintenance operation. */
+	public com.codegear.dn.search.webservice.BooleanResult optimizeIndex() {
+		try
+		{
+			LuceneEngine.getInstance().optimizeIndex();
+			
+			return new BooleanResult( true, "" );
+		}
+		catch( EngineException ee )
+		{
+			return createErrorResult( ee );
 		}
 	}
 	
@@ -157,6 +192,28 @@ public class Search {
 		}
 	}
 	
+	/** Performs a search with options, such as the stored fields to return, the appID,
+	 * category, language, product, version or publication date range the results are
+	 * restricted to, a recency boost, and the facet fields whose values are counted over
+	 * all the hits. */
+	public com.codegear.dn.search.engine.SearchResult searchEx( java.lang.String queryString, int startIndex, int resultCount,
+			com.codegear.dn.search.engine.SearchOptions options ) {
+		try
+		{
+			long startTime = System.currentTimeMillis();
+			
+			SearchResult result = LuceneEngine.getInstance().search( queryString, startIndex, resultCount, options );
+			
+			result.setRequestTime( System.currentTimeMillis() - startTime );
+			
+			return result;
+		}
+		catch( EngineException ee )
+		{
+			return new SearchResult( false, ee.toString() );
+		}
+	}
+	
 	/** Performs a search and returns the approximate hit count. */
 	public int guessHitCount( java.lang.String queryString ) {
 		try
@@ -169,6 +226,31 @@ public class Search {
 		}
 	}
 	
+	/** Returns the number of hits of a query. When allowUpperBound is set, the count of a
+	 * disjunction of terms may be larger than the actual number of hits, but is retrieved
+	 * without searching the index. */
+	public int guessHitCountEx( java.lang.String queryString, boolean allowUpperBound ) {
+		try
+		{
+			return LuceneEngine.getInstance().guessHitCount( queryString, allowUpperBound );
+		}
+		catch( EngineException ee )
+		{
+			return -1;
+		}
+	}
+	
+	/** Returns the number of index and delete requests waiting to be applied, so that
+	 * producers can throttle themselves. */
+	public int getIndexQueueSize() {
+		return LuceneEngine.getInstance().getIndexQueueSize();
+	}
+	
+	/** Returns the estimated number of bytes of content waiting to be indexed. */
+	public long getIndexQueueByteSize() {
+		return LuceneEngine.getInstance().getIndexQueueByteSize();
+	}
+	
 	/** Performs a search and returns the matching terms. */
 	public java.lang.String[] retrieveMatchingTerms( java.lang.String queryString ) {
 		try
@@ -180,4 +262,54 @@ public class Search {
 			return null;
 		}
 	}
+	
+	/** Creates the failure result for an exception. A full indexing queue is reported as a
+	 * request to retry later. */
+	private BooleanResult createErrorResult( EngineException ee ) {
+		return new BooleanResult( false, ee.toString(), ee instanceof QueueFullException );
+	}
+	
+	/** Validates the items and passes the valid ones onto the engine as a single batch. */
+	private BooleanResult[] indexContentBatch( ContentItem[] items, boolean isHTML ) {
+		if( items == null )
+			return new BooleanResult[ 0 ];
+		
+		BooleanResult[] results = new BooleanResult[ items.length ];
+		ArrayList<ContentFields> batch = new ArrayList<ContentFields>( items.length );
+		
+		for( int i = 0; i < items.length; ++i )
+		{
+			try
+			{
+				if( items[ i ] == null )
+					throw new EngineException( "Item " + i + " is empty." );
+				
+				batch.add( items[ i ].createContentFields( isHTML ) );
+				
+				results[ i ] = new BooleanResult( true, "" );
+			}
+			catch( EngineException ee )
+			{
+				results[ i ] = new BooleanResult( false, ee.toString() );
+			}
+		}
+		
+		try
+		{
+			if( !batch.isEmpty() )
+				LuceneEngine.getInstance().indexContent( batch );
+		}
+		catch( EngineException ee )
+		{
+			// None of the valid items of at least one shard were queued. Resubmitting
+			// the items that were queued is harmless, since they replace themselves.
+			for( int i = 0; i < results.length; ++i )
+			{
+				if( results[ i ].getResult() )
+					results[ i ] = createErrorResult( ee );
+			}
+		}
+		
+		return results;
+	}
 }